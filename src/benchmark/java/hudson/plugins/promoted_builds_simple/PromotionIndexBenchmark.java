@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Action;
+import hudson.model.Actionable;
+import hudson.util.XStream2;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the latest promoted build: promotion index lookup compared with
+ * checking each build newest to oldest, as PromotedBuildSelector.isSelectable does.
+ * Builds are core Actionables holding the actions of a typical build, so the scan
+ * pays for getAction over each action list and for PromoteAction.getLevelValue.
+ * Every fifth build is promoted; only the oldest promoted build is at the top level.
+ * @author Alan Harder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromotionIndexBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int builds;
+
+    @Param({"3", "10"})
+    public int levels;
+
+    /* Actions recorded before PromoteAction in a typical build (causes, SCM, tests...) */
+    private static final int OTHER_ACTIONS = 4;
+
+    private PromotionIndex index;
+    /* Builds, newest first */
+    private BuildRecord[] records;
+
+    @Setup
+    public void setup() {
+        XStream2 xstream = new XStream2();
+        index = new PromotionIndex();
+        records = new BuildRecord[builds];
+        for (int number = 1; number <= builds; number++) {
+            int value = number == 5 ? levels : number % 5 == 0 ? 1 + number % (levels - 1) : 0;
+            if (value > 0) index.add(number, value);
+            BuildRecord record = new BuildRecord(number);
+            for (int i = 0; i < OTHER_ACTIONS; i++) record.addAction(new OtherAction());
+            // Read as from build.xml, so unpromoted builds share PromoteAction.UNPROMOTED
+            record.addAction((PromoteAction)xstream.fromXML(
+                    "<hudson.plugins.promoted__builds__simple.PromoteAction><levelValue>" + value
+                    + "</levelValue></hudson.plugins.promoted__builds__simple.PromoteAction>"));
+            records[builds - number] = record;
+        }
+    }
+
+    @Benchmark
+    public int latestFromIndex() {
+        return index.getLatest(levels);
+    }
+
+    @Benchmark
+    public int firstOfBuildsFromIndex() {
+        return index.getBuilds(levels).get(0);
+    }
+
+    @Benchmark
+    public int scanEachBuild() {
+        for (BuildRecord record : records) {
+            PromoteAction pa = record.getAction(PromoteAction.class);
+            if (pa != null && pa.getLevelValue() >= levels) return record.number;
+        }
+        return -1;
+    }
+
+    /* Stands in for a loaded Run: core's action list and getAction */
+    private static final class BuildRecord extends Actionable {
+        final int number;
+
+        BuildRecord(int number) {
+            this.number = number;
+        }
+
+        public String getDisplayName() { return "#" + number; }
+        public String getSearchUrl() { return number + "/"; }
+    }
+
+    private static final class OtherAction implements Action {
+        public String getIconFileName() { return null; }
+        public String getDisplayName() { return null; }
+        public String getUrlName() { return null; }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.util.XStream2;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * XStream round trip of the plugin's persisted objects, as done for each build
+ * record and for the plugin configuration.
+ * @author Alan Harder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XStreamBenchmark {
+    private static final String ELEMENT = "hudson.plugins.promoted__builds__simple.PromoteAction";
+    private static final String PROMOTED =
+            "<" + ELEMENT + "><levelValue>3</levelValue></" + ELEMENT + ">";
+    /* Format written before level name and icon were looked up from the configured levels */
+    private static final String LEGACY = "<" + ELEMENT + "><level>GA release</level>"
+            + "<icon>ga.gif</icon><levelValue>3</levelValue></" + ELEMENT + ">";
+    private static final String UNPROMOTED =
+            "<" + ELEMENT + "><levelValue>0</levelValue></" + ELEMENT + ">";
+
+    private XStream2 xstream;
+    private PromoteAction promoted;
+    private PromotionLevel level;
+    private String levelXml;
+
+    @Setup
+    public void setup() {
+        xstream = new XStream2();
+        promoted = (PromoteAction)xstream.fromXML(PROMOTED);
+        level = new PromotionLevel("GA release", "ga.gif", true);
+        levelXml = xstream.toXML(level);
+    }
+
+    @Benchmark
+    public Object readPromoted() {
+        return xstream.fromXML(PROMOTED);
+    }
+
+    @Benchmark
+    public Object readLegacy() {
+        return xstream.fromXML(LEGACY);
+    }
+
+    @Benchmark
+    public Object readUnpromoted() {
+        return xstream.fromXML(UNPROMOTED);
+    }
+
+    @Benchmark
+    public String writePromoted() {
+        return xstream.toXML(promoted);
+    }
+
+    @Benchmark
+    public Object roundTripLevel() {
+        return xstream.fromXML(xstream.toXML(level));
+    }
+
+    @Benchmark
+    public Object readLevel() {
+        return xstream.fromXML(levelXml);
+    }
+}
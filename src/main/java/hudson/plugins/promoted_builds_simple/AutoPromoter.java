@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Apply {@link AutoPromotion} rules to completed builds.  Rules are checked on a
+ * small background pool after the build is finalized, so they do not delay build
+ * completion or hold an executor.  If the queue is full the build is not checked.
+ * @author Alan Harder
+ */
+final class AutoPromoter {
+    private static final int THREADS = 2, QUEUE_SIZE = 1000;
+
+    private AutoPromoter() { }
+
+    /**
+     * Queue a finalized build to be checked, if any level has a rule.
+     */
+    static void submit(final Run<?,?> run, final PromotedBuildsSimplePlugin plugin) {
+        if (!hasRules(plugin.getLevels()) || run.getAction(PromoteAction.class) == null) return;
+        ThreadPoolExecutor executor = plugin.getAutoPromoterExecutor();
+        if (executor == null) {   // Plugin stopped
+            PromotionMetrics.get().autoPromotionsDropped.incrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(new SystemTask() {
+                protected void doRun() {
+                    try {
+                        promote(run, plugin);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to save automatic promotion of " + run, e);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed automatic promotion of " + run, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            PromotionMetrics.get().autoPromotionsDropped.incrementAndGet();
+        }
+    }
+
+    private static boolean hasRules(List<PromotionLevel> levels) {
+        for (PromotionLevel level : levels)
+            if (level.getAutoPromotion() != null) return true;
+        return false;
+    }
+
+    /*
+     * Promote to the highest level whose rule matches, if higher than the current level.
+     * All checks are done first, then the build is saved once.
+     */
+    private static void promote(Run<?,?> run, PromotedBuildsSimplePlugin plugin) throws IOException {
+        List<PromotionLevel> levels = plugin.getLevels();
+        int newValue = 0;
+        for (int i = levels.size(); i > 0 && newValue == 0; i--) {
+            AutoPromotion rule = levels.get(i - 1).getAutoPromotion();
+            if (rule != null && rule.matches(run)) newValue = i;
+        }
+        synchronized (PromoteAction.lockFor(run)) {
+            // Do not replace a higher level set by a user meanwhile
+            PromoteAction pa = run.getAction(PromoteAction.class);
+            if (pa == null || newValue <= pa.getLevelValue()) return;
+            PromoteAction.setLevel(run, pa, newValue);
+            // Update the index in the same order as the builds change
+            PromotionIndex.of(run.getParent()).update(run.getNumber(), newValue);
+        }
+        PromoteAction.save(run);
+        Retention.schedule(run.getParent());
+        if (plugin.isPromoteChildren())
+            ChildPromotion.promoteChildren(run, newValue);
+        PromotionMetrics.get().autoPromotions.incrementAndGet();
+    }
+
+    /**
+     * Pool checking rules; the plugin creates one when started and shuts it down
+     * when stopped.
+     */
+    static ThreadPoolExecutor createExecutor() {
+        return new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory());
+    }
+
+    static int getQueueDepth() {
+        PromotedBuildsSimplePlugin plugin =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+        ThreadPoolExecutor executor = plugin != null ? plugin.getAutoPromoterExecutor() : null;
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AutoPromoter.class.getName());
+}
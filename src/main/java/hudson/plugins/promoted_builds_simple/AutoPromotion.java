@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.tasks.test.AbstractTestResultAction;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Rule to promote builds to a level automatically when they complete.
+ * @author Alan Harder
+ */
+public class AutoPromotion {
+    private final String result;
+    private final Integer maxFailures;
+
+    /**
+     * @param result Worst build result to promote: SUCCESS or UNSTABLE
+     * @param maxFailures Most test failures to promote, or empty to not check tests;
+     *   a value that is not a number is treated as empty
+     */
+    @DataBoundConstructor
+    public AutoPromotion(String result, String maxFailures) {
+        this.result = "UNSTABLE".equals(result) ? "UNSTABLE" : "SUCCESS";
+        this.maxFailures = parseMax(maxFailures);
+    }
+
+    private static Integer parseMax(String value) {
+        String max = Util.fixEmptyAndTrim(value);
+        if (max != null) try {
+            return Math.max(Integer.parseInt(max), 0);
+        } catch (NumberFormatException e) {
+            // Reported by the form check; ignore it here
+        }
+        return null;
+    }
+
+    public String getResult() { return result; }
+    public Integer getMaxFailures() { return maxFailures; }
+
+    /**
+     * Check if a completed build meets this rule.  Builds without test results
+     * do not meet a rule that checks test failures.
+     */
+    public boolean matches(Run<?,?> run) {
+        Result res = run.getResult();
+        if (res == null || res.isWorseThan(Result.fromString(result))) return false;
+        if (maxFailures == null) return true;
+        AbstractTestResultAction tests =
+                run instanceof AbstractBuild ? ((AbstractBuild<?,?>)run).getTestResultAction() : null;
+        return tests != null && tests.getFailCount() <= maxFailures;
+    }
+}
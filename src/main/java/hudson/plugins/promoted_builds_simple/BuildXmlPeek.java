@@ -0,0 +1,159 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
+
+/**
+ * Build number and promotion level read from a build.xml without loading the build.
+ * The file is read with a streaming parser only until both the actions and the build
+ * number have been seen; other actions and build data are skipped, not unmarshalled.
+ * @author Alan Harder
+ */
+final class BuildXmlPeek {
+    private static final String ACTION_ELEMENT = PromoteAction.class.getName().replace("_", "__");
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+    static {
+        FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    private final int number, levelValue;
+
+    private BuildXmlPeek(int number, int levelValue) {
+        this.number = number;
+        this.levelValue = levelValue;
+    }
+
+    public int getNumber() { return number; }
+
+    /** Promotion level in the current numbering, or zero if not promoted. */
+    public int getLevelValue() { return levelValue; }
+
+    /**
+     * Read a build record.
+     * @param table Configured levels, to convert level values saved in an older numbering
+     * @return null if the file is missing (build in progress) or could not be read
+     */
+    static BuildXmlPeek read(File file, PromotionLevelTable table) {
+        if (!file.isFile()) return null;
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try {
+                XMLStreamReader reader;
+                synchronized (FACTORY) {
+                    reader = FACTORY.createXMLStreamReader(in);
+                }
+                try {
+                    return parse(reader, table);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + file, e);
+        } catch (XMLStreamException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + file, e);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Failed to read " + file, e);
+        }
+        return null;
+    }
+
+    private static BuildXmlPeek parse(XMLStreamReader reader, PromotionLevelTable table)
+            throws XMLStreamException {
+        int number = -1, levelValue = 0;
+        boolean sawActions = false;
+        reader.nextTag(); // Root element, named for the type of build
+        while (reader.nextTag() == START_ELEMENT) {
+            String element = reader.getLocalName();
+            if (element.equals("number")) {
+                number = Integer.parseInt(reader.getElementText().trim());
+                // Actions are normally written first, so this is where reading stops
+                if (sawActions) break;
+            } else if (element.equals("actions")) {
+                sawActions = true;
+                while (reader.nextTag() == START_ELEMENT) {
+                    if (reader.getLocalName().equals(ACTION_ELEMENT))
+                        levelValue = readLevel(reader, table);
+                    else
+                        skip(reader);
+                }
+                if (number >= 0) break;
+            } else
+                skip(reader);
+        }
+        return number >= 0 ? new BuildXmlPeek(number, levelValue) : null;
+    }
+
+    /* Same result as PromoteAction.readResolve followed by getLevelValue */
+    private static int readLevel(XMLStreamReader reader, PromotionLevelTable table)
+            throws XMLStreamException {
+        int levelValue = 0, epoch = 0;
+        String name = null;
+        while (reader.nextTag() == START_ELEMENT) {
+            String field = reader.getLocalName();
+            if (field.equals("levelValue"))
+                levelValue = Integer.parseInt(reader.getElementText().trim());
+            else if (field.equals("epoch"))
+                epoch = Integer.parseInt(reader.getElementText().trim());
+            else if (field.equals("level"))
+                name = reader.getElementText();
+            else
+                skip(reader);
+        }
+        if (table == null) return levelValue;
+        if (name != null) {
+            // Older record storing the level name; kept as is if no longer configured
+            int value = table.getValue(name);
+            return value > 0 ? value : levelValue;
+        }
+        return levelValue > 0 && epoch < table.getEpoch()
+               ? table.renumber(levelValue, epoch) : levelValue;
+    }
+
+    /* Skip the current element and its content */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == START_ELEMENT) depth++;
+            else if (event == END_ELEMENT) depth--;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BuildXmlPeek.class.getName());
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixRun;
+import hudson.maven.MavenBuild;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Promotion of matrix configuration and maven module builds, which may
+ * inherit the promotion of their parent build.
+ * @author Alan Harder
+ */
+final class ChildPromotion {
+    private ChildPromotion() { }
+
+    /**
+     * Get the parent build of a matrix configuration or maven module build.
+     */
+    static Run<?,?> getParentBuild(Run<?,?> run) {
+        if (run instanceof MatrixRun)
+            return ((MatrixRun)run).getParentBuild();
+        if (isMavenAvailable() && run instanceof MavenBuild)
+            return ((MavenBuild)run).getModuleSetBuild();
+        return null;
+    }
+
+    /**
+     * Get the builds of the configurations or modules of a matrix or maven build.
+     */
+    static List<Run<?,?>> getChildBuilds(Run<?,?> parent) {
+        List<Run<?,?>> children = new ArrayList<Run<?,?>>();
+        if (parent instanceof MatrixBuild)
+            children.addAll(((MatrixBuild)parent).getRuns());
+        else if (isMavenAvailable() && parent instanceof MavenModuleSetBuild) {
+            for (List<MavenBuild> builds : ((MavenModuleSetBuild)parent).getModuleBuilds().values())
+                children.addAll(builds);
+        }
+        return children;
+    }
+
+    /**
+     * Get the builds of one matrix configuration or maven module in a matrix or
+     * maven build, without looking at other configurations or modules.
+     */
+    static List<Run<?,?>> getChildBuilds(Run<?,?> parent, Job<?,?> child) {
+        if (parent instanceof MatrixBuild) {
+            // Configuration builds have the number of their parent build
+            Run<?,?> run = child.getBuildByNumber(parent.getNumber());
+            if (run != null) return Collections.<Run<?,?>>singletonList(run);
+        } else if (isMavenAvailable() && parent instanceof MavenModuleSetBuild) {
+            List<MavenBuild> builds = ((MavenModuleSetBuild)parent).getModuleBuilds().get(child);
+            if (builds != null) return new ArrayList<Run<?,?>>(builds);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Apply promotion level of a matrix or maven build to the builds of its
+     * configurations or modules, so these need not look up the parent promotion.
+     * Child builds are saved by the background writer, so the caller does not wait.
+     */
+    static void promoteChildren(Run<?,?> parent, int newValue) {
+        PromotionWriter writer =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class).getWriter();
+        for (Run<?,?> child : getChildBuilds(parent)) {
+            try {
+                synchronized (PromoteAction.lockFor(child)) {
+                    PromoteAction current = child.getAction(PromoteAction.class);
+                    if (newValue > 0) {
+                        PromoteAction.setLevel(child, current, newValue);
+                        // Only the parent build is marked keep-forever
+                        child.getAction(PromoteAction.class).cancelKeep();
+                    } else if (child instanceof MatrixRun)
+                        PromoteAction.setLevel(child, current, 0);
+                    else  // Maven module builds have no PromoteAction unless promoted directly
+                        PromoteAction.replace(child, current, null);
+                    // Update the index in the same order as the builds change
+                    PromotionIndex.of(child.getParent()).update(child.getNumber(), newValue);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update promotion index of " + child, e);
+            }
+            writer.submit(child);
+        }
+    }
+
+    private static boolean isMavenAvailable() {
+        return Hudson.getInstance().getPlugin("maven-plugin") != null;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ChildPromotion.class.getName());
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * Uploaded badge images, stored under $JENKINS_HOME by the SHA-1 digest of their
+ * content.  The same image uploaded twice is stored once, and as the content of a
+ * name never changes it may be cached by browsers indefinitely.
+ * @author Alan Harder
+ */
+final class IconStore {
+    static final String DIR_NAME = "promoted-builds-simple-icons";
+    static final String URL = "/plugin/promoted-builds-simple/icons/";
+    static final int MAX_SIZE = 64 * 1024;
+    /** Valid stored icon name: digest and extension */
+    static final Pattern NAME = Pattern.compile("[0-9a-f]{40}\\.(gif|png|jpg)");
+
+    private final File dir;
+
+    IconStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Store an image, reading it once while computing its digest.
+     * The image type is detected from its content; only GIF, PNG and JPEG are accepted.
+     * @return path of the icon, relative to the root URL
+     * @throws IllegalArgumentException if the image is too large or not a known type
+     */
+    String store(InputStream in) throws IOException {
+        dir.mkdirs();
+        File temp = File.createTempFile("upload", ".tmp", dir);
+        try {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e.toString());
+            }
+            byte[] buf = new byte[8192], header = new byte[8];
+            int size = 0, headerSize = 0;
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                for (int len; (len = in.read(buf)) > 0; ) {
+                    size += len;
+                    if (size > MAX_SIZE)
+                        throw new IllegalArgumentException(Messages.Upload_TooLarge(MAX_SIZE / 1024));
+                    int n = Math.min(len, header.length - headerSize);
+                    System.arraycopy(buf, 0, header, headerSize, n);
+                    headerSize += n;
+                    digest.update(buf, 0, len);
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+            String type = getType(header, headerSize);
+            if (type == null)
+                throw new IllegalArgumentException(Messages.Upload_BadType());
+            String name = Util.toHexString(digest.digest()) + '.' + type;
+            File file = new File(dir, name);
+            // Keep the existing copy if this image was uploaded before
+            if (!file.exists() && !temp.renameTo(file) && !file.exists())
+                throw new IOException("Failed to store " + file);
+            return URL + name;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * File of a stored icon, or null if the name is not valid or not stored.
+     */
+    File get(String name) {
+        if (name == null || !NAME.matcher(name).matches()) return null;
+        File file = new File(dir, name);
+        return file.isFile() ? file : null;
+    }
+
+    static String getContentType(String name) {
+        return name.endsWith(".png") ? "image/png"
+             : name.endsWith(".jpg") ? "image/jpeg" : "image/gif";
+    }
+
+    /* Image type from the first bytes of the file */
+    private static String getType(byte[] header, int size) {
+        if (size >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F'
+                && header[3] == '8' && (header[4] == '7' || header[4] == '9') && header[5] == 'a')
+            return "gif";
+        if (size >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N'
+                && header[3] == 'G' && header[4] == '\r' && header[5] == '\n')
+            return "png";
+        if (size >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8
+                && (header[2] & 0xff) == 0xff)
+            return "jpg";
+        return null;
+    }
+}
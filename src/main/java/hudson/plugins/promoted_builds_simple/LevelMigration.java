@@ -0,0 +1,283 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Hudson;
+import hudson.model.Items;
+import hudson.model.Job;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Background update of stored promotion levels after levels were reordered or removed.
+ * Builds convert their level value to the new numbering when loaded, but this is
+ * not saved; this task rewrites the build records, promotion history and job
+ * configurations of all jobs so it is.
+ * Jobs already done are saved in the plugin configuration, so the task can
+ * be resumed after a restart.  Once all are done, renumberings older than any level
+ * value left on disk are dropped.
+ * @author Alan Harder
+ */
+public final class LevelMigration {
+    private final Set<String> completedJobs = new TreeSet<String>();
+    private int threads = 2, maxBuildsPerSecond = 20;
+    /** Oldest epoch of level values left in completed jobs, as a save failed; null if none */
+    private Integer oldestEpoch;
+
+    private transient volatile ExecutorService executor;
+    private transient volatile Thread waiter;
+    private transient volatile boolean cancelled;
+    private transient AtomicInteger jobsTotal, jobsDone, buildsSaved;
+    private transient long startTime, nextSaveNanos;
+
+    public int getThreads() { return threads; }
+    public int getMaxBuildsPerSecond() { return maxBuildsPerSecond; }
+    public synchronized int getCompletedJobCount() { return completedJobs.size(); }
+
+    /** Oldest renumbering epoch of level values stored by the jobs done. */
+    synchronized int getOldestEpoch() {
+        int current = PromoteAction.getLevelTable().getEpoch();
+        return oldestEpoch != null ? Math.min(oldestEpoch, current) : current;
+    }
+
+    public boolean isRunning() {
+        ExecutorService e = executor;
+        return e != null && !e.isTerminated();
+    }
+
+    public int getJobsTotal() { return jobsTotal != null ? jobsTotal.get() : 0; }
+    public int getJobsDone() { return jobsDone != null ? jobsDone.get() : 0; }
+    public int getBuildsSaved() { return buildsSaved != null ? buildsSaved.get() : 0; }
+    public long getElapsedMillis() {
+        return startTime > 0 ? System.currentTimeMillis() - startTime : 0;
+    }
+
+    /**
+     * Start updating build records in the background.
+     * @param threads Number of jobs to update in parallel
+     * @param maxBuildsPerSecond Limit on rate of saving build records, for all threads
+     */
+    synchronized void start(int threads, int maxBuildsPerSecond) {
+        if (isRunning()) return;
+        this.threads = Math.max(threads, 1);
+        this.maxBuildsPerSecond = Math.max(maxBuildsPerSecond, 1);
+        cancelled = false;
+        jobsTotal = new AtomicInteger();
+        jobsDone = new AtomicInteger();
+        buildsSaved = new AtomicInteger();
+        startTime = System.currentTimeMillis();
+        nextSaveNanos = System.nanoTime();
+        // Job configurations are saved with the jobs that use them
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        for (Renumberable config : getConfigs())
+            config.renumber(table);
+        final ExecutorService pool =
+                Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory());
+        executor = pool;
+        List<Job> jobs = Hudson.getInstance().getAllItems(Job.class);
+        for (final Job<?,?> job : jobs) {
+            if (isCompleted(job)) continue;
+            jobsTotal.incrementAndGet();
+            pool.execute(new Runnable() {
+                public void run() {
+                    if (cancelled) return;
+                    try {
+                        migrate(job);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to update promotions of " + job, e);
+                        return;
+                    }
+                    jobDone(job);
+                }
+            });
+        }
+        pool.shutdown();
+        // Remove this task from the configuration once all jobs are done
+        Thread thread = new Thread("Promotion level update") {
+            @Override public void run() {
+                try {
+                    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class)
+                        .migrationFinished(LevelMigration.this);
+            }
+        };
+        thread.setDaemon(true);
+        waiter = thread;
+        thread.start();
+    }
+
+    /** Stop after jobs in progress are done; may be started again later. */
+    public void cancel() {
+        cancelled = true;
+        ExecutorService e = executor;
+        if (e != null) e.shutdownNow();
+        Thread t = waiter;
+        if (t != null) t.interrupt();
+    }
+
+    boolean isComplete() {
+        return !isRunning() && jobsTotal != null && !cancelled
+                && jobsDone.get() == jobsTotal.get();
+    }
+
+    private synchronized boolean isCompleted(Job<?,?> job) {
+        return completedJobs.contains(job.getFullName());
+    }
+
+    private void migrate(Job<?,?> job) throws InterruptedException {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        // Saves that fail leave values from any epoch not yet dropped
+        int oldest = table.getEpoch();
+        for (Run<?,?> run : job.getBuilds()) {
+            if (cancelled) throw new InterruptedException();
+            PromoteAction pa = run.getAction(PromoteAction.class);
+            synchronized (PromoteAction.lockFor(run)) {
+                boolean changed = renumberParameters(run, table);
+                // A removed level is replaced by UNPROMOTED when the build is written
+                if (pa != null && pa.renumber(table)) changed = true;
+                if (!changed) continue;
+            }
+            throttle();
+            try {
+                PromoteAction.write(run);
+                buildsSaved.incrementAndGet();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save " + run, e);
+                oldest = table.getRenumberingBase();
+            }
+        }
+        try {
+            oldest = Math.min(oldest, PromotionHistory.of(job).renumber(table));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update promotion history of " + job, e);
+            oldest = table.getRenumberingBase();
+        }
+        if (usesLevels(job)) try {
+            job.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + job, e);
+            oldest = table.getRenumberingBase();
+        }
+        // Convert the promotion index too; one left older is rebuilt when loaded
+        PromotionIndex.of(job).getLatest(1);
+        synchronized (this) {
+            if (oldest < table.getEpoch())
+                oldestEpoch = oldestEpoch != null ? Math.min(oldestEpoch, oldest) : oldest;
+        }
+    }
+
+    /* Convert level parameter values of the build; true if any changed */
+    private static boolean renumberParameters(Run<?,?> run, PromotionLevelTable table) {
+        ParametersAction params = run.getAction(ParametersAction.class);
+        boolean changed = false;
+        if (params != null) for (ParameterValue value : params.getParameters())
+            if (value instanceof PromotionLevelParameterValue
+                    && ((PromotionLevelParameterValue)value).renumber(table))
+                changed = true;
+        return changed;
+    }
+
+    /* True if the job configuration may hold a level selector or level parameter */
+    private static boolean usesLevels(Job<?,?> job) {
+        File file = Items.getConfigFile(job).getFile();
+        try {
+            return file.exists() && FileUtils.readFileToString(file).contains(CONFIG_CLASS_PREFIX);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /* Element or class name of PromotedBuildSelector and PromotionLevelParameter in XML */
+    private static final String CONFIG_CLASS_PREFIX = "promoted__builds__simple.Promot";
+
+    /**
+     * Job configuration holding a level value, which is converted to the current
+     * numbering when a migration starts, so it is saved that way with its job.
+     */
+    interface Renumberable {
+        void renumber(PromotionLevelTable table);
+    }
+
+    /* Loaded configurations holding level values */
+    private static final Map<Renumberable,Boolean> CONFIGS = new WeakHashMap<Renumberable,Boolean>();
+
+    static void register(Renumberable config) {
+        synchronized (CONFIGS) {
+            CONFIGS.put(config, Boolean.TRUE);
+        }
+    }
+
+    private static List<Renumberable> getConfigs() {
+        synchronized (CONFIGS) {
+            return new ArrayList<Renumberable>(CONFIGS.keySet());
+        }
+    }
+
+    /* Wait as needed so saves from all threads stay within maxBuildsPerSecond */
+    private void throttle() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextSaveNanos = Math.max(nextSaveNanos, now) + 1000000000L / maxBuildsPerSecond;
+            wait = nextSaveNanos - now - 1000000000L / maxBuildsPerSecond;
+        }
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private void jobDone(Job<?,?> job) {
+        synchronized (this) {
+            completedJobs.add(job.getFullName());
+        }
+        // Record progress in plugin configuration now and then
+        if (jobsDone.incrementAndGet() % 50 == 0) try {
+            Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class).save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save progress of promotion level update", e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LevelMigration.class.getName());
+}
@@ -23,15 +23,22 @@
  */
 package hudson.plugins.promoted_builds_simple;
 
+import hudson.BulkChange;
 import hudson.PluginWrapper;
 import hudson.model.BuildBadgeAction;
 import hudson.model.Hudson;
 import hudson.model.Job;
 import hudson.model.Run;
+import hudson.model.User;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
@@ -43,52 +50,409 @@ import org.kohsuke.stapler.export.ExportedBean;
  */
 @ExportedBean(defaultVisibility=2)
 public class PromoteAction implements BuildBadgeAction {
-    private String level, icon;
     private int levelValue;
+    // Renumbering epoch in which levelValue was assigned; null for zero
+    private Integer epoch;
+    // Name and icon are looked up from the configured levels by levelValue.
+    // These are only set for older records whose level is no longer configured.
+    private String level, icon;
+    // True if this plugin marked the build keep-forever, so retention may release it
+    private Boolean autoKept;
+    // Older record whose level was found by name when loaded, not yet saved that way
+    private transient boolean remapped;
+    // Set when a promotion auto-keeps the build, until the build is saved
+    private transient boolean keepPending;
+
+    /**
+     * Shared instance for builds that may be promoted but have no promotion level.
+     * A new PromoteAction replaces this in the build when a level is assigned.
+     */
+    public static final PromoteAction UNPROMOTED = new PromoteAction();
 
     public PromoteAction() { }
 
+    private Object readResolve() {
+        // Older build records also store level name and icon; look up the level by
+        // name instead, or keep one copy of the strings if no longer configured
+        if (level != null) {
+            PromotionLevelTable table = getLevelTable();
+            int value = table != null ? table.getValue(level) : 0;
+            if (value > 0) {
+                levelValue = value;
+                setEpoch(table.getEpoch());
+                level = icon = null;
+                remapped = anyRemapped = true;
+            } else {
+                level = level.intern();
+                if (icon != null) icon = icon.intern();
+            }
+        }
+        // Older build records have their own empty instance; share one instead.
+        // A cleared promotion still auto-keeping the build is kept, to be released.
+        return level == null && levelValue == 0 && !isAutoKept() ? UNPROMOTED : this;
+    }
+
+    /** Set once any older record is mapped by name, so jobs are only checked then */
+    private static volatile boolean anyRemapped;
+
+    /**
+     * Correct the promotion index and save builds of the job whose older record was
+     * mapped to a level by name when loaded, so the index and build.xml agree with the
+     * level in memory.  Called when the index of a job is loaded, which also happens
+     * again for the new job object after the configuration is reloaded.
+     */
+    static void saveRemapped(Job<?,?> job, PromotionIndex index) {
+        if (!anyRemapped) return;
+        BulkChange bc = new BulkChange(index);
+        try {
+            for (Run<?,?> run : job.getBuilds()) {
+                PromoteAction pa = run.getAction(PromoteAction.class);
+                if (pa == null || !pa.remapped) continue;
+                synchronized (lockFor(run)) {
+                    // Promoted again since loaded; that promotion saved the build
+                    if (run.getAction(PromoteAction.class) != pa || !pa.remapped) continue;
+                    pa.remapped = false;
+                    index.update(run.getNumber(), pa.getLevelValue());
+                }
+                try {
+                    save(run);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to save " + run, e);
+                }
+            }
+            bc.commit();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to update promotion index of " + job, e);
+        } finally {
+            bc.abort();
+        }
+    }
+
     /* Action methods */
     public String getUrlName() { return "promote"; }
     public String getDisplayName() { return ""; }
     public String getIconFileName() { return null; }
 
     /* Promotion details */
-    @Exported public String getLevel() { return level; }
-    @Exported public int getLevelValue() { return levelValue; }
+    @Exported public String getLevel() {
+        if (level != null) return level;
+        PromotionLevel src = getPromotionLevel();
+        return src != null ? src.getName() : null;
+    }
+
+    @Exported public int getLevelValue() {
+        PromotionLevelTable table = levelValue > 0 ? getLevelTable() : null;
+        return table != null ? getLevelValue(table) : levelValue;
+    }
+
+    private PromotionLevel getPromotionLevel() {
+        PromotionLevelTable table = levelValue > 0 ? getLevelTable() : null;
+        return table != null ? table.get(getLevelValue(table)) : null;
+    }
+
+    /*
+     * Level value in the current numbering, if levels were reordered or removed since
+     * it was assigned.  Only converted here, not stored; see renumber.
+     */
+    private int getLevelValue(PromotionLevelTable table) {
+        int from = epoch != null ? epoch : 0;
+        return level == null && from < table.getEpoch() ? table.renumber(levelValue, from) : levelValue;
+    }
+
+    /**
+     * Store levelValue in the current numbering if levels were reordered or removed
+     * since it was assigned, so the build can be saved that way.  Getters convert the
+     * value without changing it, so this is only called holding {@link #lockFor} the build.
+     * @return true if levelValue or epoch were changed, so the build should be saved
+     */
+    synchronized boolean renumber(PromotionLevelTable table) {
+        int from = epoch != null ? epoch : 0;
+        if (from >= table.getEpoch() || this == UNPROMOTED) return false;
+        if (level == null) levelValue = table.renumber(levelValue, from);
+        setEpoch(table.getEpoch());
+        return true;
+    }
+
+    private void setEpoch(int epoch) {
+        this.epoch = epoch > 0 ? epoch : null;
+    }
+
+    /** True if the build was marked keep-forever by being promoted. */
+    public boolean isAutoKept() { return autoKept != null && autoKept; }
+
+    void setAutoKept(boolean autoKept) {
+        this.autoKept = autoKept ? Boolean.TRUE : null;
+    }
 
     public String getIconPath() {
+        String icon = this.icon;
+        if (level == null) {
+            PromotionLevel src = getPromotionLevel();
+            icon = src != null ? src.getIcon() : null;
+        }
+        return getIconPath(icon);
+    }
+
+    /**
+     * Path of an icon, relative to the root URL.
+     * @param icon Icon as configured for a promotion level
+     */
+    static String getIconPath(String icon) {
         if (icon == null || icon.startsWith("/")) return icon;
-        // Try plugin images dir, fallback to main images dir
-        PluginWrapper wrapper =
-            Hudson.getInstance().getPluginManager().getPlugin(PromotedBuildsSimplePlugin.class);
-        return new File(wrapper.baseResourceURL.getPath() + "/images/" + icon).exists()
-            ? "/plugin/" + wrapper.getShortName() + "/images/" + icon
-            : Hudson.RESOURCE_PATH + "/images/16x16/" + icon;
+        String path = ICON_PATHS.get(icon);
+        if (path != null)
+            PromotionMetrics.get().iconCacheHits.incrementAndGet();
+        else {
+            PromotionMetrics.get().iconCacheMisses.incrementAndGet();
+            // Try plugin images dir, fallback to main images dir
+            PluginWrapper wrapper =
+                Hudson.getInstance().getPluginManager().getPlugin(PromotedBuildsSimplePlugin.class);
+            path = new File(wrapper.baseResourceURL.getPath() + "/images/" + icon).exists()
+                ? "/plugin/" + wrapper.getShortName() + "/images/" + icon
+                : Hudson.RESOURCE_PATH + "/images/16x16/" + icon;
+            ICON_PATHS.put(icon, path);
+        }
+        return path;
+    }
+
+    /**
+     * Resolved icon paths by icon name, shared by all builds.
+     * Cleared when promotion levels or icons are changed.
+     */
+    private static final ConcurrentMap<String,String> ICON_PATHS =
+            new ConcurrentHashMap<String,String>();
+
+    static void clearIconCache() {
+        ICON_PATHS.clear();
     }
 
     public static List<PromotionLevel> getAllPromotionLevels() {
-        return Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class).getLevels();
+        return getPlugin().getLevels();
     }
 
-    /* Save change to promotion level for this build and redirect back to build page */
+    /** URL of the promotion levels in JSON, relative to the root URL. */
+    public static String getLevelsUrl() {
+        return "/plugin/promoted-builds-simple/levels?v=" + getPlugin().getLevelTable().getETag();
+    }
+
+    /*
+     * Save change to promotion level for this build and redirect back to build page.
+     * With parameter "expect", the level is only changed if the build is currently at
+     * that level (zero for not promoted); otherwise responds with 409 Conflict.
+     * A level that is not a number or not configured gets 400 Bad Request.
+     */
     public void doIndex(StaplerRequest req, StaplerResponse rsp)
             throws IOException, ServletException {
         req.findAncestorObject(Job.class).checkPermission(Run.UPDATE);
-        levelValue = Integer.parseInt(req.getParameter("level"));
-        if (levelValue == 0) {
-            level = icon = null;
-            req.findAncestorObject(Run.class).save();
-        } else {
-            PromotionLevel src = getAllPromotionLevels().get(levelValue - 1);
-            level = src.getName();
-            icon = src.getIcon();
-            // Mark as keep-forever when promoting; this also does save()
-            if (src.isAutoKeep())
-                req.findAncestorObject(Run.class).keepLog(true);
-            else
-                req.findAncestorObject(Run.class).save();
+        Run run = req.findAncestorObject(Run.class);
+        int newValue;
+        Integer expect;
+        try {
+            newValue = Integer.parseInt(req.getParameter("level"));
+            String value = req.getParameter("expect");
+            expect = value != null ? Integer.valueOf(value) : null;
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (newValue < 0 || newValue > getPlugin().getLevelTable().size()) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, Messages.Promote_BadLevel(newValue));
+            return;
+        }
+        synchronized (lockFor(run)) {
+            // Use the action now in the build; this one may have been replaced meanwhile
+            PromoteAction current = (PromoteAction)run.getAction(PromoteAction.class);
+            int actual = current != null ? current.getLevelValue() : 0;
+            if (expect != null && actual != expect) {
+                rsp.sendError(HttpServletResponse.SC_CONFLICT,
+                              Messages.Promote_Conflict(actual, expect));
+                return;
+            }
+            setLevel(run, current, newValue);
+            // Update the index in the same order as the builds change
+            PromotionIndex.of(run.getParent()).update(run.getNumber(), newValue);
         }
+        long start = System.nanoTime();
+        save(run);
+        PromotionMetrics.get().saveTime.record((System.nanoTime() - start) / 1000);
+        Retention.schedule(run.getParent());
+        if (getPlugin().isPromoteChildren())
+            ChildPromotion.promoteChildren(run, newValue);
         rsp.forwardToPreviousPage(req);
     }
+
+    /**
+     * Change the promotion level of a build in memory; caller must then save the build.
+     * The change is made holding {@link #lockFor} the build.  Keep-forever is set or
+     * released when the build is saved, as retention may change it meanwhile.
+     * @param current PromoteAction currently attached to the build
+     * @param newValue New promotion level, or zero to clear promotion
+     */
+    static void setLevel(Run<?,?> run, PromoteAction current, int newValue) {
+        synchronized (lockFor(run)) {
+            setLevelLocked(run, current, newValue);
+        }
+    }
+
+    private static void setLevelLocked(Run<?,?> run, PromoteAction current, int newValue) {
+        int oldValue = current != null ? current.getLevelValue() : 0;
+        if (newValue == 0) {
+            if (current != null && current.isAutoKept()) {
+                // Keep the action until saved, so keep-forever set by promotion is released
+                PromotionIndex.changed(run.getParent());
+                current.levelValue = 0;
+                current.setEpoch(0);
+                current.level = current.icon = null;
+                current.keepPending = false;
+            } else
+                replace(run, current, UNPROMOTED);
+            record(run, oldValue, 0);
+            return;
+        }
+        PromotionLevel src = getPlugin().getLevelTable().get(newValue);
+        if (src == null) throw new IllegalArgumentException("No promotion level " + newValue);
+        PromotionIndex.changed(run.getParent());
+        PromoteAction pa = current == null || current == UNPROMOTED
+                ? replace(run, current, new PromoteAction()) : current;
+        pa.levelValue = newValue;
+        pa.setEpoch(getPlugin().getLevelTable().getEpoch());
+        pa.level = pa.icon = null;
+        // Remember if keep-forever is set by this promotion, not by the user
+        if (src.isAutoKeep() && !run.isKeepLog()) {
+            pa.setAutoKept(true);
+            pa.keepPending = true;
+        }
+        record(run, oldValue, newValue);
+    }
+
+    /**
+     * Do not mark the build keep-forever for the promotion just set, as for builds
+     * promoted with their parent build.  Holding {@link #lockFor} the build.
+     */
+    void cancelKeep() {
+        if (keepPending) {
+            keepPending = false;
+            setAutoKept(false);
+        }
+    }
+
+    /*
+     * Change to keep-forever to make as the build is saved, or null for none: set for
+     * a promotion that auto-keeps unless retention released it since, or released
+     * when such a promotion was cleared or its level removed, replacing this action
+     * by UNPROMOTED.  Holding lockFor the build.
+     */
+    private Boolean takeKeepChange(Run<?,?> run) {
+        if (this != UNPROMOTED && level == null && getLevelValue() == 0) {
+            replace(run, this, UNPROMOTED);
+            return isAutoKept() && run.isKeepLog() ? Boolean.FALSE : null;
+        }
+        if (!keepPending) return null;
+        keepPending = false;
+        return isAutoKept() && !run.isKeepLog() ? Boolean.TRUE : null;
+    }
+
+    /**
+     * Lock held while changing or saving the promotion of a build.  Locks are shared
+     * by builds with the same hash, so promotions of different builds rarely wait on
+     * each other and no lock objects are kept per build.
+     */
+    static Object lockFor(Run<?,?> run) {
+        int hash = run.getParent().getFullName().hashCode() * 31 + run.getNumber();
+        hash ^= hash >>> 16;
+        return LOCKS[hash & (LOCKS.length - 1)];
+    }
+
+    private static final Object[] LOCKS = new Object[64];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) LOCKS[i] = new Object();
+    }
+
+    /*
+     * Add the change to the promotion history of the job, and notify listeners of it,
+     * once the build is saved; the user is taken now, as the build may be saved by a
+     * background thread.
+     */
+    private static void record(Run<?,?> run, int oldValue, int newValue) {
+        if (oldValue == newValue) return;
+        User user = User.current();
+        PromotionHistory.of(run.getParent()).changed(run.getNumber(), System.currentTimeMillis(),
+                oldValue, newValue, getPlugin().getLevelTable().getEpoch(),
+                user != null ? user.getId() : null);
+    }
+
+    /*
+     * Change keep-forever as the system user: releasing it needs Delete permission,
+     * but it follows a promotion change that was checked for Update permission.
+     */
+    private static void keepLog(final Run<?,?> run, final boolean keep) throws IOException {
+        final IOException[] failure = new IOException[1];
+        new SystemTask() {
+            protected void doRun() {
+                try {
+                    run.keepLog(keep);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+        }.run();
+        if (failure[0] != null) throw failure[0];
+    }
+
+    /* Save the build now, or queue it for the background writer if write-behind is enabled */
+    static void save(Run<?,?> run) throws IOException {
+        PromotedBuildsSimplePlugin plugin = getPlugin();
+        if (plugin.isWriteBehind())
+            plugin.getWriter().submit(run);
+        else
+            write(run);
+    }
+
+    static void write(Run<?,?> run) throws IOException {
+        PromotionHistory history = PromotionHistory.of(run.getParent());
+        List<PromotionHistory.Entry> changes;
+        // Hold the lock so the saved record is not changed while it is written
+        synchronized (lockFor(run)) {
+            boolean saved = false;
+            try {
+                // Keep-forever follows the promotion as it is now, not when queued
+                PromoteAction pa = run.getAction(PromoteAction.class);
+                Boolean keep = pa != null ? pa.takeKeepChange(run) : null;
+                if (keep != null)
+                    keepLog(run, keep);   // Also saves the build
+                else
+                    run.save();
+                saved = true;
+            } finally {
+                if (!saved) history.discard(run.getNumber());
+            }
+            changes = history.saved(run.getNumber());
+        }
+        // Listeners only hear of changes that are saved
+        for (PromotionHistory.Entry change : changes)
+            PromotionListener.fire(run, change.getOldValue(), change.getNewValue());
+    }
+
+    static PromoteAction replace(Run<?,?> run, PromoteAction from, PromoteAction to) {
+        if (from != to) {
+            PromotionIndex.changed(run.getParent());
+            run.getActions().remove(from);
+            if (to != null) run.addAction(to);
+        }
+        return to;
+    }
+
+    private static PromotedBuildsSimplePlugin getPlugin() {
+        return Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+    }
+
+    /* Configured levels, or null if Jenkins or this plugin is not running */
+    static PromotionLevelTable getLevelTable() {
+        Hudson hudson = Hudson.getInstance();
+        PromotedBuildsSimplePlugin plugin =
+                hudson != null ? hudson.getPlugin(PromotedBuildsSimplePlugin.class) : null;
+        return plugin != null ? plugin.getLevelTable() : null;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromoteAction.class.getName());
 }
@@ -25,13 +25,24 @@ package hudson.plugins.promoted_builds_simple;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixRun;
 import hudson.maven.MavenBuild;
+import hudson.maven.MavenModule;
 import hudson.maven.MavenModuleSetBuild;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Run;
+import hudson.plugins.copyartifact.BuildFilter;
 import hudson.plugins.copyartifact.BuildSelector;
 import hudson.plugins.copyartifact.SimpleBuildSelectorDescriptor;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -39,39 +50,215 @@ import org.kohsuke.stapler.DataBoundConstructor;
  * of a particular promotion level (or higher).
  * @author Alan Harder
  */
-public class PromotedBuildSelector extends BuildSelector {
-    private static final String LEVEL_PARAM_NAME = "COPY_PROMOTION_LEVEL";
+public class PromotedBuildSelector extends BuildSelector implements LevelMigration.Renumberable {
     private int level;
+    // Renumbering epoch in which level was chosen; null for zero
+    private Integer epoch;
 
     @DataBoundConstructor
     public PromotedBuildSelector(int level) {
         this.level = level;
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (table != null && table.getEpoch() > 0) epoch = table.getEpoch();
+        LevelMigration.register(this);
     }
 
-    public int getLevel() {
+    private Object readResolve() {
+        LevelMigration.register(this);
+        return this;
+    }
+
+    /**
+     * Level to select in the current numbering; zero to take the level from the
+     * environment, or -1 if the chosen level was removed, so nothing is selected.
+     */
+    public synchronized int getLevel() {
+        renumber(PromoteAction.getLevelTable());
         return level;
     }
 
+    /* Store level in the current numbering, so the job is saved that way */
+    public synchronized void renumber(PromotionLevelTable table) {
+        int from = epoch != null ? epoch : 0;
+        if (table == null || from >= table.getEpoch()) return;
+        if (level > 0) {
+            level = table.renumber(level, from);
+            // Removed level selects nothing, rather than the level from the environment
+            if (level == 0) level = -1;
+        }
+        epoch = table.getEpoch();
+    }
+
     @Override
     public boolean isSelectable(Run<?,?> run, EnvVars env) {
+        int checkLevel = getCheckLevel(env);
+        return checkLevel > 0 && isSelectable(run, checkLevel);
+    }
+
+    private boolean isSelectable(Run<?,?> run, int checkLevel) {
+        PromotionMetrics.get().evaluations.incrementAndGet();
         PromoteAction pa = run.getAction(PromoteAction.class);
         // Check for promotion in parent build for maven/matrix.
         // MavenBuild does not trigger RunListener, so gets no PromoteAction.. always check parent.
         // MatrixRun does get PromoteAction; check parent if no promotion at child level.
-        if (pa == null && run instanceof MavenBuild)
-            pa = ((MavenBuild)run).getModuleSetBuild().getAction(PromoteAction.class);
-        else if (run instanceof MatrixRun && (pa == null || pa.getLevel() == null))
-            pa = ((MatrixRun)run).getParentBuild().getAction(PromoteAction.class);
+        if ((pa == null && run instanceof MavenBuild)
+                || (run instanceof MatrixRun && (pa == null || pa.getLevel() == null)))
+            pa = getParentPromotion(run);
         if (pa == null) return false;
-        int checkLevel = level;
-        if (checkLevel == 0) try {   // 0 means to select level from build parameter/environment
-            checkLevel = Integer.parseInt(env.get(LEVEL_PARAM_NAME));
-        } catch (NumberFormatException nfe) {
-            checkLevel = Integer.MAX_VALUE;
-        }
         return pa.getLevelValue() >= checkLevel;
     }
 
+    private static PromoteAction getParentPromotion(Run<?,?> run) {
+        Run<?,?> parent = ChildPromotion.getParentBuild(run);
+        return parent != null ? parent.getAction(PromoteAction.class) : null;
+    }
+
+    /**
+     * Use the per-job promotion index to go directly to promoted builds.
+     * Maven module and matrix configuration builds may inherit promotion from
+     * their parent build, so these also check the builds of promoted parent builds,
+     * found from the index of the parent job.
+     * The level to check is resolved once, before looking at any builds.
+     * The newest selectable build of each job and level is remembered until
+     * promotions or completed builds of that job change, so repeated selections
+     * usually check only that build.
+     */
+    @Override
+    public Run<?,?> getBuild(Job<?,?> job, EnvVars env, BuildFilter filter) {
+        PromotionMetrics metrics = PromotionMetrics.get();
+        metrics.selections.incrementAndGet();
+        int checkLevel = getCheckLevel(env);
+        if (checkLevel <= 0) return null;
+        long start = System.nanoTime();
+        long[] stamps = getChangeStamps(job);
+        Scan scan = new Scan();
+        Integer known = getSelected(job, checkLevel, stamps);
+        // Zero is remembered when no build is at this level
+        if (known == null || known > 0) {
+            Run<?,?> run = known != null ? job.getBuildByNumber(known) : null;
+            if (run == null || run.isBuilding() || !check(run, checkLevel, env, filter, scan)) {
+                // Not remembered, or the filter wants an older build
+                scan.newest = null;
+                scan(job, checkLevel, env, filter, scan);
+                setSelected(job, checkLevel,
+                            scan.newest != null ? scan.newest.getNumber() : 0, stamps);
+            }
+        }
+        metrics.buildsScanned.record(scan.scanned);
+        metrics.selectionTime.record((System.nanoTime() - start) / 1000);
+        return scan.result;
+    }
+
+    private void scan(Job<?,?> job, int checkLevel, EnvVars env, BuildFilter filter, Scan scan) {
+        if (job instanceof MavenModule || job instanceof MatrixConfiguration) {
+            for (Run<?,?> run : getChildCandidates(job, checkLevel))
+                if (!run.isBuilding() && check(run, checkLevel, env, filter, scan)) return;
+        } else {
+            for (int number : PromotionIndex.of(job).getBuilds(checkLevel)) {
+                Run<?,?> run = job.getBuildByNumber(number);
+                // Also check the build itself, in case a queued save was lost before restart
+                if (run != null && !run.isBuilding() && check(run, checkLevel, env, filter, scan))
+                    return;
+            }
+        }
+    }
+
+    /*
+     * Builds of a maven module or matrix configuration that are promoted themselves,
+     * or are in a promoted parent build, newest first.  Found from the indexes of the
+     * job and its parent job, so other builds are not looked at.
+     */
+    private static Collection<Run<?,?>> getChildCandidates(Job<?,?> job, int checkLevel) {
+        TreeMap<Integer,Run<?,?>> candidates =
+                new TreeMap<Integer,Run<?,?>>(Collections.reverseOrder());
+        for (int number : PromotionIndex.of(job).getBuilds(checkLevel)) {
+            Run<?,?> run = job.getBuildByNumber(number);
+            if (run != null) candidates.put(number, run);
+        }
+        Job<?,?> parentJob = (Job)job.getParent();
+        for (int number : PromotionIndex.of(parentJob).getBuilds(checkLevel)) {
+            Run<?,?> parent = parentJob.getBuildByNumber(number);
+            if (parent != null)
+                for (Run<?,?> run : ChildPromotion.getChildBuilds(parent, job))
+                    candidates.put(run.getNumber(), run);
+        }
+        return candidates.values();
+    }
+
+    /* Check one build; true if it is selected */
+    private boolean check(Run<?,?> run, int checkLevel, EnvVars env, BuildFilter filter,
+                          Scan scan) {
+        scan.scanned++;
+        if (!isSelectable(run, checkLevel)) return false;
+        if (scan.newest == null) scan.newest = run;
+        if (!filter.isSelectable(run, env)) return false;
+        scan.result = run;
+        return true;
+    }
+
+    /* Builds checked by one selection */
+    private static final class Scan {
+        int scanned;
+        /* Newest build at the level, and the newest also accepted by the filter */
+        Run<?,?> newest, result;
+    }
+
+    /*
+     * Change stamps of the job, and of its parent job for maven modules and matrix
+     * configurations, as their builds may take the promotion of parent builds.
+     */
+    private static long[] getChangeStamps(Job<?,?> job) {
+        long stamp = PromotionIndex.of(job).getChangeStamp();
+        if (job instanceof MavenModule || job instanceof MatrixConfiguration)
+            return new long[] { stamp, PromotionIndex.of((Job)job.getParent()).getChangeStamp() };
+        return new long[] { stamp, 0 };
+    }
+
+    /* Remembered newest build number at a level, or null if not known */
+    private static Integer getSelected(Job<?,?> job, int level, long[] stamps) {
+        synchronized (SELECTED) {
+            Map<Integer,long[]> byLevel = SELECTED.get(job);
+            long[] entry = byLevel != null ? byLevel.get(level) : null;
+            return entry != null && entry[1] == stamps[0] && entry[2] == stamps[1]
+                    ? Integer.valueOf((int)entry[0]) : null;
+        }
+    }
+
+    private static void setSelected(Job<?,?> job, int level, int number, long[] stamps) {
+        synchronized (SELECTED) {
+            Map<Integer,long[]> byLevel = SELECTED.get(job);
+            if (byLevel == null) SELECTED.put(job, byLevel = new HashMap<Integer,long[]>());
+            byLevel.put(level, new long[] { number, stamps[0], stamps[1] });
+        }
+    }
+
+    /**
+     * Job -> level -> newest build number at that level (zero if none) and the change
+     * stamps of the job and its parent job when it was found; entries with other
+     * stamps are not used, so a change in one job does not affect others.
+     */
+    private static final Map<Job,Map<Integer,long[]>> SELECTED =
+            new WeakHashMap<Job,Map<Integer,long[]>>();
+
+    /*
+     * Level to select, or zero if it is taken from the environment and that does not
+     * name a configured level.
+     */
+    private int getCheckLevel(EnvVars env) {
+        int level = getLevel();
+        if (level != 0) return level;
+        // 0 means to select level from build parameter/environment (level value or name)
+        String value = env.get(PromotionLevelParameterValue.LEVEL_PARAM_NAME);
+        try {
+            return PromotionLevelParameterValue.resolve(value);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning(e.getMessage());
+            return 0;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotedBuildSelector.class.getName());
+
     @Extension(optional=true)
     public static final Descriptor<BuildSelector> DESCRIPTOR =
             new SimpleBuildSelectorDescriptor(
@@ -23,22 +23,45 @@
  */
 package hudson.plugins.promoted_builds_simple;
 
+import hudson.BulkChange;
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.Plugin;
+import hudson.Util;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Hudson;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
 import hudson.model.listeners.RunListener;
+import hudson.util.FormValidation;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.apache.commons.fileupload.FileItem;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -48,6 +71,21 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 public class PromotedBuildsSimplePlugin extends Plugin {
     private List<PromotionLevel> levels = new ArrayList<PromotionLevel>();
+    private boolean writeBehind, promoteChildren, warmUp;
+    /** Each renumbering of level values due to levels reordered or removed */
+    private List<int[]> renumberings = new ArrayList<int[]>();
+    /** Number of renumberings dropped from the start of the list, no longer needed */
+    private int renumberingBase;
+    /** Pending update of stored level values after a renumbering, or null */
+    private LevelMigration migration;
+    private transient final PromotionWriter writer = new PromotionWriter();
+    private transient final PromotionWarmup warmup = new PromotionWarmup();
+    private transient volatile PromotionLevelTable levelTable =
+            new PromotionLevelTable(levels, 0);
+    /* Background pools, created when the plugin starts and shut down when it stops */
+    private transient volatile ThreadPoolExecutor listenerExecutor, autoPromoterExecutor;
+    private transient volatile ScheduledExecutorService retentionExecutor;
+    private transient volatile ExecutorService indexExecutor;
 
     @Override public void start() throws Exception {
         // Default levels (load() will replace these if customized)
@@ -55,58 +93,412 @@ public class PromotedBuildsSimplePlugin extends Plugin {
         levels.add(new PromotionLevel("QA approved", "qa-green.gif", true));
         levels.add(new PromotionLevel("GA release", "ga.gif", true));
         load();
+        if (renumberings == null) renumberings = new ArrayList<int[]>();
+        levelTable = new PromotionLevelTable(levels, renumberings, renumberingBase,
+                                             levelTable.getVersion() + 1);
+        listenerExecutor = PromotionListener.createExecutor();
+        autoPromoterExecutor = AutoPromoter.createExecutor();
+        retentionExecutor = Retention.createExecutor();
+        indexExecutor = PromotionIndex.createExecutor();
     }
 
-    public List<PromotionLevel> getLevels() { return levels; }
+    @Override public void stop() throws Exception {
+        warmup.cancel();
+        LevelMigration m = migration;
+        if (m != null && m.isRunning()) m.cancel();
+        writer.shutdown();
+        if (autoPromoterExecutor != null) autoPromoterExecutor.shutdown();
+        if (retentionExecutor != null) retentionExecutor.shutdownNow();
+        if (listenerExecutor != null) listenerExecutor.shutdown();
+        if (indexExecutor != null) indexExecutor.shutdownNow();
+    }
+
+    public List<PromotionLevel> getLevels() { return levelTable.getLevels(); }
+    public PromotionLevelTable getLevelTable() { return levelTable; }
+    public boolean isWriteBehind() { return writeBehind; }
+    public boolean isPromoteChildren() { return promoteChildren; }
+    public PromotionWriter getWriter() { return writer; }
+    ThreadPoolExecutor getListenerExecutor() { return listenerExecutor; }
+    ThreadPoolExecutor getAutoPromoterExecutor() { return autoPromoterExecutor; }
+    ScheduledExecutorService getRetentionExecutor() { return retentionExecutor; }
+    ExecutorService getIndexExecutor() { return indexExecutor; }
+    public boolean isWarmUp() { return warmUp; }
+    public PromotionWarmup getWarmup() { return warmup; }
+
+    /** Pending update of stored level values, or null if none is needed. */
+    public LevelMigration getMigration() { return migration; }
+
+    /*
+     * Called by the migration task when it stops.  Once all jobs are done, renumberings
+     * older than any level value still stored are dropped.
+     */
+    synchronized void migrationFinished(LevelMigration done) {
+        if (done == migration && done.isComplete()) {
+            migration = null;
+            int drop = Math.min(done.getOldestEpoch() - renumberingBase, renumberings.size());
+            if (drop > 0) {
+                renumberings.subList(0, drop).clear();
+                renumberingBase += drop;
+                levelTable = new PromotionLevelTable(levelTable.getLevels(), renumberings,
+                                                     renumberingBase, levelTable.getVersion());
+            }
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save promotion level update progress", e);
+        }
+    }
 
     @Override public void configure(StaplerRequest req, JSONObject formData)
             throws IOException, ServletException, FormException {
-        levels.clear();
-        levels.addAll(req.bindJSONToList(PromotionLevel.class, formData.get("levels")));
+        writeBehind = formData.optBoolean("writeBehind");
+        promoteChildren = formData.optBoolean("promoteChildren");
+        warmUp = formData.optBoolean("warmUp");
+        setLevels(req.bindJSONToList(PromotionLevel.class, formData.get("levels")));
+        if (!writeBehind) writer.flush();
+    }
+
+    /** Apply promotion of matrix and maven builds to their configuration and module builds. */
+    void setPromoteChildren(boolean promoteChildren) throws IOException {
+        this.promoteChildren = promoteChildren;
         save();
     }
 
+    /**
+     * Save promotion changes in the background, or save them when made.
+     * Turning this off saves any queued changes now.
+     */
+    void setWriteBehind(boolean writeBehind) throws IOException {
+        this.writeBehind = writeBehind;
+        save();
+        if (!writeBehind) writer.flush();
+    }
+
+    /**
+     * Replace the configured promotion levels and save.
+     */
+    public synchronized void setLevels(List<PromotionLevel> newLevels) throws IOException {
+        List<PromotionLevel> oldLevels = levels;
+        levels = new ArrayList<PromotionLevel>(newLevels);
+        PromotionLevelTable table = new PromotionLevelTable(levels, levelTable.getVersion() + 1);
+        int[] renumbering = table.getRenumbering(oldLevels);
+        if (renumbering != null) {
+            // Stored level values are converted when loaded; builds are rewritten
+            // with the new values by the migration, when started from the manage page.
+            renumberings.add(renumbering);
+            table = new PromotionLevelTable(levels, renumberings, renumberingBase,
+                                            table.getVersion());
+            // All jobs need updating again, for the new renumbering
+            if (migration != null) migration.cancel();
+            migration = new LevelMigration();
+        } else if (renumberingBase > 0 || !renumberings.isEmpty()) {
+            table = new PromotionLevelTable(levels, renumberings, renumberingBase,
+                                            table.getVersion());
+        }
+        levelTable = table;
+        save();
+        PromoteAction.clearIconCache();
+        PromotionIndex.invalidateAll();
+    }
+
+    /**
+     * Check the maximum test failures of an automatic promotion rule; empty means
+     * test results are not checked.
+     */
+    public FormValidation doCheckMaxFailures(@QueryParameter String value) {
+        return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok()
+                : FormValidation.validateNonNegativeInteger(value.trim());
+    }
+
+    /**
+     * Check the number of builds kept for a level; empty means all are kept.
+     */
+    public FormValidation doCheckKeepLatest(@QueryParameter String value) {
+        return Util.fixEmptyAndTrim(value) == null ? FormValidation.ok()
+                : FormValidation.validatePositiveInteger(value.trim());
+    }
+
     public void doMakePromotable(StaplerRequest req, StaplerResponse rsp) throws IOException {
         req.findAncestorObject(Job.class).checkPermission(Run.UPDATE);
         Run run = req.findAncestorObject(Run.class);
         if (run != null) {
-            run.addAction(new PromoteAction());
+            run.addAction(PromoteAction.UNPROMOTED);
             run.save();
             rsp.sendRedirect(
                 req.getRequestURI().substring(0, req.getRequestURI().indexOf("parent/parent")));
         }
     }
 
+    /**
+     * Promote many builds in one request.  POST a JSON array of objects with
+     * <tt>job</tt> (full name), <tt>build</tt> (number) and <tt>level</tt> (value, or zero
+     * to clear promotion), and optionally <tt>expect</tt> (level value the build must
+     * currently have, or the item fails with status "conflict").  All level changes are
+     * applied first, then each affected build is saved once.  Responds with a JSON array
+     * giving the result for each item.
+     */
+    public void doBulkPromote(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        JSONArray items = JSONArray.fromObject(IOUtils.toString(req.getReader()));
+        JSONArray results = new JSONArray();
+        // Builds to save, each once
+        Set<Run> changed = new LinkedHashSet<Run>();
+        Map<Run,JSONObject> resultByRun = new HashMap<Run,JSONObject>();
+        Set<PromotionIndex> indexes = new HashSet<PromotionIndex>();
+        // BulkChanges must complete in reverse order of creation
+        LinkedList<BulkChange> bulkChanges = new LinkedList<BulkChange>();
+        try {
+            for (Object o : items) {
+                JSONObject item = (JSONObject)o, result = new JSONObject();
+                result.put("job", item.optString("job"));
+                result.put("build", item.optInt("build"));
+                result.put("level", item.optInt("level"));
+                results.add(result);
+                String error = null, status = "error";
+                Job job = Hudson.getInstance().getItemByFullName(item.optString("job"), Job.class);
+                Run run = job != null ? job.getBuildByNumber(item.optInt("build")) : null;
+                int levelValue = item.optInt("level", -1);
+                PromoteAction pa = run != null ? run.getAction(PromoteAction.class) : null;
+                if (run == null)
+                    error = Messages.BulkPromote_NoBuild();
+                else if (!job.hasPermission(Run.UPDATE))
+                    error = Messages.BulkPromote_NoPermission();
+                else if (pa == null)
+                    error = Messages.BulkPromote_NotPromotable();
+                else if (levelValue < 0 || levelValue > levelTable.size())
+                    error = Messages.BulkPromote_BadLevel();
+                else synchronized (PromoteAction.lockFor(run)) {
+                    // Check and change the level together
+                    pa = run.getAction(PromoteAction.class);
+                    int expect = item.optInt("expect", -1);
+                    if (expect >= 0 && pa.getLevelValue() != expect) {
+                        error = Messages.Promote_Conflict(pa.getLevelValue(), expect);
+                        status = "conflict";
+                    } else {
+                        PromoteAction.setLevel(run, pa, levelValue);
+                        // Update the index in the same order as the builds change
+                        PromotionIndex index = PromotionIndex.of(job);
+                        if (indexes.add(index))
+                            bulkChanges.addFirst(new BulkChange(index));
+                        index.update(run.getNumber(), levelValue);
+                        changed.add(run);
+                        resultByRun.put(run, result);
+                    }
+                }
+                result.put("status", error != null ? status : "ok");
+                if (error != null) result.put("message", error);
+            }
+            flush(changed, resultByRun, bulkChanges);
+        } finally {
+            for (BulkChange bc : bulkChanges)
+                bc.abort();
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        results.write(rsp.getWriter());
+    }
+
+    /* Save each changed build once, then each affected promotion index once */
+    private void flush(Set<Run> changed, Map<Run,JSONObject> resultByRun,
+                       List<BulkChange> bulkChanges) {
+        for (Run run : changed) {
+            try {
+                PromoteAction.save(run);
+                if (promoteChildren) ChildPromotion.promoteChildren(
+                        run, run.getAction(PromoteAction.class).getLevelValue());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save promotion of " + run, e);
+                JSONObject result = resultByRun.get(run);
+                result.put("status", "error");
+                result.put("message", e.toString());
+            }
+        }
+        for (BulkChange bc : bulkChanges) try {
+            bc.commit();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save promotion index", e);
+        }
+        for (Run run : changed)
+            Retention.schedule(run.getParent());
+    }
+
+    /**
+     * Promotion levels as JSON, for the promotion menu on build pages.
+     * Pages request this with the current ETag of the levels as parameter <tt>v</tt>,
+     * so a response for that URL never changes and may be cached indefinitely.
+     */
+    public void doLevels(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        PromotionLevelTable table = levelTable;
+        String etag = '"' + table.getETag() + '"';
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", table.getETag().equals(req.getParameter("v"))
+                ? "public, max-age=31536000" : "no-cache");
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(table.toJSON());
+    }
+
+    /**
+     * List promoted builds of all jobs, as one JSON object per line.
+     * Optional parameters: <tt>minLevel</tt> to list only builds promoted to this level
+     * or higher, and <tt>job</tt> to list only jobs whose full name starts with this prefix.
+     * Output is written as it is found, using the promotion index of each job.
+     * A job whose index is not loaded yet is listed as <tt>{"job":name,"pending":true}</tt>
+     * while its index loads in the background; its builds are listed by later requests.
+     */
+    public void doPromotions(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        int minLevel = 1;
+        if (req.getParameter("minLevel") != null) try {
+            minLevel = Integer.parseInt(req.getParameter("minLevel"));
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "minLevel");
+            return;
+        }
+        String prefix = Util.fixNull(req.getParameter("job"));
+        rsp.setContentType("application/x-ndjson;charset=UTF-8");
+        PrintWriter out = rsp.getWriter();
+        for (Job<?,?> job : Hudson.getInstance().getAllItems(Job.class)) {
+            if (!job.getFullName().startsWith(prefix) || !job.hasPermission(Item.READ))
+                continue;
+            PromotionIndex index = PromotionIndex.getIfLoaded(job);
+            if (index == null) {
+                JSONObject line = new JSONObject();
+                line.put("job", job.getFullName());
+                line.put("pending", true);
+                out.println(line.toString());
+                continue;
+            }
+            for (int number : index.getBuilds(minLevel)) {
+                Run<?,?> run = job.getBuildByNumber(number);
+                PromoteAction pa = run != null ? run.getAction(PromoteAction.class) : null;
+                if (pa == null || pa.getLevelValue() < minLevel) continue;
+                JSONObject line = new JSONObject();
+                line.put("job", job.getFullName());
+                line.put("build", number);
+                line.put("level", pa.getLevel());
+                line.put("levelValue", pa.getLevelValue());
+                line.put("timestamp", run.getTimeInMillis());
+                out.println(line.toString());
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Promotion history of one job as a JSON array, read from its history log.
+     * Parameter <tt>job</tt> (full name) is required.  With <tt>build</tt> (number),
+     * lists all changes to that build.  Otherwise lists changes that raised builds to
+     * <tt>minLevel</tt> (default 1) or higher, optionally only those in the last
+     * <tt>days</tt> days.
+     */
+    public void doHistory(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Job<?,?> job = Hudson.getInstance().getItemByFullName(
+                Util.fixNull(req.getParameter("job")), Job.class);
+        if (job == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        job.checkPermission(Item.READ);
+        int number, minLevel, days;
+        try {
+            number = parseInt(req.getParameter("build"), 0);
+            minLevel = parseInt(req.getParameter("minLevel"), 1);
+            days = parseInt(req.getParameter("days"), 0);
+        } catch (NumberFormatException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        PromotionHistory history = PromotionHistory.of(job);
+        List<PromotionHistory.Entry> entries = number > 0 ? history.getEntries(number)
+                : history.getPromotions(minLevel,
+                        days > 0 ? System.currentTimeMillis() - days * 86400000L : 0);
+        JSONArray result = new JSONArray();
+        for (PromotionHistory.Entry entry : entries) {
+            JSONObject item = new JSONObject();
+            item.put("build", entry.getNumber());
+            item.put("timestamp", entry.getTimestamp());
+            item.put("oldLevel", entry.getOldValue());
+            item.put("newLevel", entry.getNewValue());
+            if (entry.getUser() != null) item.put("user", entry.getUser());
+            result.add(item);
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        result.write(rsp.getWriter());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
     /**
      * Receive file upload from startUpload.jelly.
-     * File is placed in $JENKINS_HOME/userContent directory.
+     * File is kept in the icon store, named by the digest of its content.
      */
     public void doUpload(StaplerRequest req, StaplerResponse rsp)
             throws IOException, ServletException, InterruptedException {
-        Hudson hudson = Hudson.getInstance();
-        hudson.checkPermission(Hudson.ADMINISTER);
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
         FileItem file = req.getFileItem("badgeicon.file");
-        String error = null, filename = null;
+        String error = null, path = null;
         if (file == null || file.getName().isEmpty())
             error = Messages.Upload_NoFile();
+        else if (file.getSize() > IconStore.MAX_SIZE)
+            error = Messages.Upload_TooLarge(IconStore.MAX_SIZE / 1024);
         else {
-            filename = "userContent/"
-                    // Sanitize given filename:
-                    + file.getName().replaceFirst(".*/", "").replaceAll("[^\\w.,;:()#@!=+-]", "_");
-            FilePath imageFile = hudson.getRootPath().child(filename);
-            if (imageFile.exists())
-                error = Messages.Upload_DupName();
-            else {
-                imageFile.copyFrom(file.getInputStream());
-                imageFile.chmod(0644);
+            InputStream in = file.getInputStream();
+            try {
+                path = getIconStore().store(in);
+                PromotionMetrics.get().uploads.incrementAndGet();
+                PromoteAction.clearIconCache();
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            } finally {
+                in.close();
             }
         }
-        rsp.setContentType("text/html");
+        rsp.setContentType("text/html;charset=UTF-8");
         rsp.getWriter().println(
-                (error != null ? error : Messages.Upload_Uploaded("<tt>/" + filename + "</tt>"))
+                (error != null ? error : Messages.Upload_Uploaded("<tt>" + path + "</tt>"))
                 + " <a href=\"javascript:history.back()\">" + Messages.Upload_Back() + "</a>");
     }
 
+    /**
+     * Serve an uploaded icon.  Icon names are the digest of their content, so
+     * responses are marked to be cached indefinitely.
+     */
+    public void doIcons(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        String name = req.getRestOfPath().replaceFirst("^/", "");
+        File file = getIconStore().get(name);
+        if (file == null) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        String etag = '"' + name + '"';
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "public, max-age=31536000, immutable");
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        rsp.setContentType(IconStore.getContentType(name));
+        rsp.setContentLength((int)file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copy(in, rsp.getOutputStream());
+        } finally {
+            in.close();
+        }
+    }
+
+    IconStore getIconStore() {
+        return new IconStore(new File(Hudson.getInstance().getRootDir(), IconStore.DIR_NAME));
+    }
+
     @Extension
     public static class PromotedBuildsRunListener extends RunListener<Run> {
         public PromotedBuildsRunListener() {
@@ -117,8 +509,49 @@ public class PromotedBuildsSimplePlugin extends Plugin {
         public void onCompleted(Run run, TaskListener listener) {
             Result res = run.getResult();
             if (res != Result.FAILURE && res != Result.ABORTED) {
-                run.addAction(new PromoteAction());
+                run.addAction(PromoteAction.UNPROMOTED);
+            }
+        }
+
+        /* Check auto-promotion rules once the build record is complete and saved */
+        @Override
+        public void onFinalized(Run run) {
+            // A completed build may now be selected
+            PromotionIndex.changed(run.getParent());
+            PromotedBuildsSimplePlugin plugin =
+                    Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+            if (plugin != null) AutoPromoter.submit(run, plugin);
+        }
+
+        @Override
+        public void onDeleted(Run run) {
+            if (run.getAction(PromoteAction.class) != null) try {
+                PromotionIndex.of(run.getParent()).remove(run.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to update promotion index for " + run, e);
             }
         }
     }
+
+    @Extension
+    public static class PromotedBuildsItemListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (item instanceof Job) {
+                PromotionIndex.forget((Job)item);
+                PromotionHistory.forget((Job)item);
+            }
+        }
+
+        /* Cached indexes and histories refer to files in the old job directory */
+        @Override
+        public void onRenamed(Item item, String oldName, String newName) {
+            if (item instanceof Job) {
+                PromotionIndex.forget((Job)item);
+                PromotionHistory.renamed((Job)item);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotedBuildsSimplePlugin.class.getName());
 }
@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.views.ListViewColumn;
+import hudson.views.ListViewColumnDescriptor;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * List view column showing the newest build of the job at each promotion level.
+ * Rendered from the promotion index of each job, so no builds are loaded.
+ * @author Alan Harder
+ */
+public class PromotionColumn extends ListViewColumn {
+    @DataBoundConstructor
+    public PromotionColumn() { }
+
+    /**
+     * Newest build at each level that any build of the job has, highest level first.
+     * @return null if the promotion index of the job is not loaded yet; it is then
+     *   loaded in the background, so rendering a view never reads build records
+     */
+    public List<Latest> getLatest(Job<?,?> job) {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        List<Latest> result = new ArrayList<Latest>();
+        if (table == null) return result;
+        PromotionIndex index = PromotionIndex.getIfLoaded(job);
+        if (index == null) return null;
+        int[] latest = index.getLatestByLevel(table.size());
+        for (int i = latest.length; i > 0; i--)
+            if (latest[i - 1] > 0)
+                result.add(new Latest(table.get(i), latest[i - 1]));
+        return result;
+    }
+
+    /**
+     * Newest build at one level.
+     */
+    public static final class Latest {
+        private final PromotionLevel level;
+        private final int number;
+
+        Latest(PromotionLevel level, int number) {
+            this.level = level;
+            this.number = number;
+        }
+
+        public String getLevelName() { return level.getName(); }
+        public String getIconPath() { return PromoteAction.getIconPath(level.getIcon()); }
+        public int getNumber() { return number; }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends ListViewColumnDescriptor {
+        @Override
+        public String getDisplayName() {
+            return Messages.PromotionColumn_DisplayName();
+        }
+
+        @Override
+        public boolean shownByDefault() {
+            return false;
+        }
+    }
+}
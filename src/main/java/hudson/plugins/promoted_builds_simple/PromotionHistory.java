@@ -0,0 +1,354 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Job;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append-only log of promotion changes of one job, kept in the job directory.
+ * Each change is a fixed size record, so the file can be scanned with memory
+ * mapped I/O without loading any build records.
+ * <p>
+ * Record layout (big-endian): build number (int), timestamp (long),
+ * old level value (short), new level value (short), renumbering epoch (short),
+ * user id (UTF-8, zero padded to {@link #USER_BYTES}).
+ * @author Alan Harder
+ */
+public final class PromotionHistory {
+    static final String FILE_NAME = "promoted-builds-simple-history.dat";
+    static final int RECORD_SIZE = 64, USER_BYTES = RECORD_SIZE - 4 - 8 - 2 - 2 - 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Map<Job,PromotionHistory> HISTORIES = new WeakHashMap<Job,PromotionHistory>();
+
+    /** Changes when the job is renamed; appends hold the lock, scans read it once */
+    private volatile File file;
+    /** Set once a partial record left at the end of the file has been dropped */
+    private boolean checked;
+    /** Changes made but not yet saved in the build record, by build number */
+    private final Map<Integer,List<ByteBuffer>> pending = new HashMap<Integer,List<ByteBuffer>>();
+
+    PromotionHistory(File file) {
+        this.file = file;
+    }
+
+    public static PromotionHistory of(Job<?,?> job) {
+        synchronized (HISTORIES) {
+            PromotionHistory history = HISTORIES.get(job);
+            if (history == null)
+                HISTORIES.put(job, history = new PromotionHistory(new File(job.getRootDir(), FILE_NAME)));
+            return history;
+        }
+    }
+
+    /**
+     * Drop the cached history of a deleted job, with any changes not yet saved,
+     * as their builds are deleted too.
+     */
+    public static void forget(Job<?,?> job) {
+        synchronized (HISTORIES) {
+            HISTORIES.remove(job);
+        }
+    }
+
+    /**
+     * Use the file in the new directory of a renamed job.  The same history is kept,
+     * so changes not yet saved with their builds are appended there once they are.
+     */
+    public static void renamed(Job<?,?> job) {
+        PromotionHistory history;
+        synchronized (HISTORIES) {
+            history = HISTORIES.get(job);
+        }
+        if (history != null) history.moved(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    private synchronized void moved(File newFile) {
+        file = newFile;
+        checked = false;
+    }
+
+    /**
+     * Append a promotion change.
+     * @param user Id of user making the change, or null
+     */
+    public synchronized void append(int number, long timestamp, int oldValue, int newValue,
+                                    int epoch, String user) throws IOException {
+        write(Collections.singletonList(encode(number, timestamp, oldValue, newValue, epoch, user)));
+    }
+
+    /**
+     * Remember a promotion change until the build record is saved; it is appended
+     * by {@link #saved}, or dropped by {@link #discard} if the save fails.
+     */
+    public synchronized void changed(int number, long timestamp, int oldValue, int newValue,
+                                     int epoch, String user) {
+        List<ByteBuffer> records = pending.get(number);
+        if (records == null) pending.put(number, records = new ArrayList<ByteBuffer>());
+        records.add(encode(number, timestamp, oldValue, newValue, epoch, user));
+    }
+
+    /**
+     * Append changes to a build once its record is saved.
+     * @return the changes, oldest first; also returned if they could not be appended
+     */
+    public synchronized List<Entry> saved(int number) {
+        List<ByteBuffer> records = pending.remove(number);
+        if (records == null) return Collections.emptyList();
+        try {
+            write(records);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record promotion history in " + file, e);
+        }
+        List<Entry> result = new ArrayList<Entry>(records.size());
+        for (ByteBuffer record : records)
+            result.add(new Entry(number, record.getLong(4), record.getShort(12),
+                                 record.getShort(14), decodeUser(record, 18)));
+        return result;
+    }
+
+    /** Drop changes to a build whose record could not be saved. */
+    public synchronized void discard(int number) {
+        pending.remove(number);
+    }
+
+    private static ByteBuffer encode(int number, long timestamp, int oldValue, int newValue,
+                                     int epoch, String user) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putInt(number).putLong(timestamp)
+              .putShort((short)oldValue).putShort((short)newValue).putShort((short)epoch);
+        record.put(encodeUser(user));
+        record.rewind();
+        return record;
+    }
+
+    /*
+     * Records are only ever added at the end.  A partial record left by an interrupted
+     * write is dropped once, before the first append; the file is not truncated while
+     * readers may have it mapped.
+     */
+    private void write(List<ByteBuffer> records) throws IOException {
+        if (!checked) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size % RECORD_SIZE != 0) channel.truncate(size / RECORD_SIZE * RECORD_SIZE);
+            } finally {
+                raf.close();
+            }
+            checked = true;
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            FileChannel channel = out.getChannel();
+            for (ByteBuffer record : records) {
+                record.rewind();
+                while (record.hasRemaining()) channel.write(record);
+            }
+        } catch (IOException e) {
+            checked = false;   // Check for a partial record again next time
+            throw e;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Rewrite records from earlier renumbering epochs with level values in the current
+     * numbering, so older renumberings are no longer needed to read them.  The records
+     * are written to a new file that replaces the old one, as readers may have the old
+     * one mapped; if it cannot be replaced, the old records are kept.
+     * @return oldest epoch of the records now in the file
+     */
+    synchronized int renumber(PromotionLevelTable table) throws IOException {
+        int current = table.getEpoch(), oldest = current;
+        if (!file.exists()) return current;
+        File tmp = new File(file.getPath() + ".tmp");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size() / RECORD_SIZE * RECORD_SIZE;
+            if (size == 0) return current;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int pos = 0; pos < size; pos += RECORD_SIZE)
+                oldest = Math.min(oldest, buf.getShort(pos + 16));
+            if (oldest >= current) return oldest;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                byte[] bytes = new byte[RECORD_SIZE];
+                ByteBuffer record = ByteBuffer.wrap(bytes);
+                for (int pos = 0; pos < size; pos += RECORD_SIZE) {
+                    buf.position(pos);
+                    buf.get(bytes);
+                    int epoch = record.getShort(16);
+                    if (epoch < current)
+                        record.putShort(12, (short)table.renumber(record.getShort(12), epoch))
+                              .putShort(14, (short)table.renumber(record.getShort(14), epoch))
+                              .putShort(16, (short)current);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return oldest;
+        }
+        checked = true;   // Only whole records were copied
+        return current;
+    }
+
+    /* UTF-8 bytes of the user id, shortened by whole characters to fit the record */
+    private static byte[] encodeUser(String user) {
+        if (user == null) user = "";
+        byte[] bytes = user.getBytes(UTF8);
+        while (bytes.length > USER_BYTES) {
+            user = user.substring(0, user.length() - 1);
+            bytes = user.getBytes(UTF8);
+        }
+        byte[] padded = new byte[USER_BYTES];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        return padded;
+    }
+
+    /** All changes to one build, oldest first. */
+    public List<Entry> getEntries(int number) throws IOException {
+        return scan(number, 0, 0);
+    }
+
+    /**
+     * Changes at or after the given time that raised builds from below the given level
+     * to that level or higher, oldest first.
+     */
+    public List<Entry> getPromotions(int minLevel, long since) throws IOException {
+        return scan(0, Math.max(minLevel, 1), since);
+    }
+
+    /**
+     * First change that raised a build to the given level or higher, or null if none.
+     */
+    public Entry getFirstPromotion(int number, int minLevel) throws IOException {
+        List<Entry> entries = scan(number, Math.max(minLevel, 1), 0);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /*
+     * Read matching records from a read-only mapping of the file.
+     * A zero number or minLevel matches any; level values are converted to the current
+     * numbering before comparing.
+     */
+    private List<Entry> scan(int number, int minLevel, long since) throws IOException {
+        File file = this.file;
+        if (!file.exists()) return Collections.emptyList();
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        List<Entry> result = new ArrayList<Entry>();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size() / RECORD_SIZE * RECORD_SIZE;
+            if (size == 0) return result;
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int pos = 0; pos < size; pos += RECORD_SIZE) {
+                if (number > 0 && buf.getInt(pos) != number) continue;
+                long timestamp = buf.getLong(pos + 4);
+                if (timestamp < since) continue;
+                int epoch = buf.getShort(pos + 16);
+                int newValue = renumber(table, buf.getShort(pos + 14), epoch);
+                if (newValue < minLevel) continue;
+                int oldValue = renumber(table, buf.getShort(pos + 12), epoch);
+                if (minLevel > 0 && oldValue >= minLevel) continue;  // Already at that level
+                result.add(new Entry(buf.getInt(pos), timestamp, oldValue, newValue,
+                                     decodeUser(buf, pos + 18)));
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /* User id stored at the given position, or null if none */
+    private static String decodeUser(ByteBuffer buf, int pos) {
+        byte[] user = new byte[USER_BYTES];
+        buf.position(pos);
+        buf.get(user);
+        int len = 0;
+        while (len < USER_BYTES && user[len] != 0) len++;
+        return len > 0 ? new String(user, 0, len, UTF8) : null;
+    }
+
+    private static int renumber(PromotionLevelTable table, int value, int epoch) {
+        return table != null ? table.renumber(value, epoch) : value;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionHistory.class.getName());
+
+    /**
+     * One recorded promotion change.
+     */
+    public static final class Entry {
+        private final int number, oldValue, newValue;
+        private final long timestamp;
+        private final String user;
+
+        Entry(int number, long timestamp, int oldValue, int newValue, String user) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+            this.user = user;
+        }
+
+        public int getNumber() { return number; }
+        public long getTimestamp() { return timestamp; }
+        /** Level value before the change, zero if not promoted. */
+        public int getOldValue() { return oldValue; }
+        /** Level value after the change, zero if promotion was cleared. */
+        public int getNewValue() { return newValue; }
+        /** Id of the user who made the change, or null if not known. */
+        public String getUser() { return user; }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.BulkChange;
+import hudson.XmlFile;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.util.DaemonThreadFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Per-job index of promoted build numbers, by promotion level.
+ * Kept in a sidecar file in the job directory so the build selector can find
+ * promoted builds without loading every build record.
+ * @author Alan Harder
+ */
+public final class PromotionIndex implements Saveable {
+    static final String FILE_NAME = "promoted-builds-simple-index.xml";
+
+    private static final Pattern BUILD_ID =
+            Pattern.compile("\\d{4}-\\d{2}-\\d{2}_\\d{2}-\\d{2}-\\d{2}");
+
+    /** Source of change stamps, shared by all jobs so a reloaded index never reuses one */
+    private static final AtomicLong STAMPS = new AtomicLong();
+
+    private static final Map<Job,PromotionIndex> INDEXES = new WeakHashMap<Job,PromotionIndex>();
+    /** Lock held while loading the index of a job; guarded by INDEXES */
+    private static final Map<Job,Object> LOADING = new WeakHashMap<Job,Object>();
+    /** Jobs whose index is queued to load in the background; guarded by INDEXES */
+    private static final Set<Job> QUEUED = Collections.newSetFromMap(new WeakHashMap<Job,Boolean>());
+
+    /** Promotion level value -> build numbers at that level */
+    private final TreeMap<Integer,TreeSet<Integer>> builds = new TreeMap<Integer,TreeSet<Integer>>();
+    /** Renumbering epoch of the level values in this index */
+    private int epoch;
+
+    private transient XmlFile file;
+    /** Memoized results of getBuilds, by minimum level; cleared on any change */
+    private transient Map<Integer,List<Integer>> memo;
+    /** Stamp of the last change to promotions or completed builds of the job */
+    private transient volatile long stamp;
+
+    PromotionIndex() { }
+
+    /**
+     * Get the index for a job, loading it from disk or building it from the
+     * job's build records if no index file exists yet.
+     */
+    public static PromotionIndex of(Job<?,?> job) {
+        Object loadLock;
+        synchronized (INDEXES) {
+            PromotionIndex index = INDEXES.get(job);
+            if (index != null) return index;
+            loadLock = LOADING.get(job);
+            if (loadLock == null) LOADING.put(job, loadLock = new Object());
+        }
+        // Load outside the global lock so indexes of different jobs can load in parallel,
+        // but only one thread loads (and may rebuild and save) the index of each job
+        PromotionIndex loaded;
+        synchronized (loadLock) {
+            synchronized (INDEXES) {
+                PromotionIndex index = INDEXES.get(job);
+                if (index != null) return index;
+            }
+            loaded = load(job);
+            synchronized (INDEXES) {
+                INDEXES.put(job, loaded);
+                LOADING.remove(job);
+            }
+        }
+        // Outside the load lock, as this takes build locks held while indexes are used
+        PromoteAction.saveRemapped(job, loaded);
+        return loaded;
+    }
+
+    /**
+     * Get the index for a job if it is loaded; otherwise return null and load it in
+     * the background, so pages listing many jobs do not read build records while
+     * they render.
+     */
+    public static PromotionIndex getIfLoaded(final Job<?,?> job) {
+        synchronized (INDEXES) {
+            PromotionIndex index = INDEXES.get(job);
+            if (index != null || !QUEUED.add(job)) return index;
+        }
+        PromotedBuildsSimplePlugin plugin =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+        ExecutorService executor = plugin != null ? plugin.getIndexExecutor() : null;
+        if (executor != null) try {
+            executor.execute(new SystemTask() {
+                protected void doRun() {
+                    try {
+                        of(job);
+                    } finally {
+                        synchronized (INDEXES) {
+                            QUEUED.remove(job);
+                        }
+                    }
+                }
+            });
+            return null;
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+        // Not running; the index is loaded when next used directly
+        synchronized (INDEXES) {
+            QUEUED.remove(job);
+        }
+        return null;
+    }
+
+    /**
+     * Pool loading indexes in the background; the plugin creates one when started
+     * and shuts it down when stopped.
+     */
+    static ExecutorService createExecutor() {
+        return Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+    }
+
+    /**
+     * Drop the loaded index of a job that was deleted or renamed; a renamed job
+     * loads its index again from its new directory.
+     */
+    public static void forget(Job<?,?> job) {
+        synchronized (INDEXES) {
+            INDEXES.remove(job);
+        }
+    }
+
+    /**
+     * Clear memoized results of all loaded indexes, as when promotion levels are changed.
+     */
+    public static void invalidateAll() {
+        synchronized (INDEXES) {
+            for (PromotionIndex index : INDEXES.values())
+                index.invalidate();
+        }
+    }
+
+    /**
+     * Changes each time promotions or completed builds of the job change, for checking
+     * memoized selections.  A stamp is never reused, also after the index is reloaded.
+     */
+    long getChangeStamp() {
+        return stamp;
+    }
+
+    /** Record a change in the job, so memoized selections are found again. */
+    void changed() {
+        stamp = STAMPS.incrementAndGet();
+    }
+
+    /**
+     * Record a change in a job; nothing is memoized for a job whose index is not
+     * loaded, so it is not loaded for this.
+     */
+    static void changed(Job<?,?> job) {
+        PromotionIndex index;
+        synchronized (INDEXES) {
+            index = INDEXES.get(job);
+        }
+        if (index != null) index.changed();
+    }
+
+    private synchronized void invalidate() {
+        memo = null;
+        changed();
+    }
+
+    private static PromotionIndex load(Job<?,?> job) {
+        XmlFile file = new XmlFile(Hudson.XSTREAM, new File(job.getRootDir(), FILE_NAME));
+        PromotionIndex index = null;
+        if (file.exists()) try {
+            index = (PromotionIndex)file.read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to load " + file + "; rebuilding", e);
+        }
+        // Level values from before the renumberings still kept can not be converted
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (index != null && table != null && index.epoch < table.getRenumberingBase())
+            index = null;
+        if (index == null) {
+            index = new PromotionIndex();
+            index.file = file;
+            index.rebuild(job);
+        } else
+            index.file = file;
+        index.changed();
+        return index;
+    }
+
+    /*
+     * Scan all build records of the job; only done when the index file is missing,
+     * or too old to convert.
+     * Each build.xml is only read as far as its promotion, so builds are not loaded;
+     * builds still queued for write-behind are taken from memory instead.
+     */
+    private synchronized void rebuild(Job<?,?> job) {
+        builds.clear();
+        memo = null;
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        epoch = table != null ? table.getEpoch() : 0;
+        File[] dirs = job.getBuildDir().listFiles();
+        if (dirs != null) for (File dir : dirs) {
+            // Skip the symlinks named by build number that point to these directories
+            if (!BUILD_ID.matcher(dir.getName()).matches()) continue;
+            BuildXmlPeek peek = BuildXmlPeek.read(new File(dir, "build.xml"), table);
+            if (peek != null && peek.getLevelValue() > 0)
+                add(peek.getNumber(), peek.getLevelValue());
+        }
+        // Write-behind may not have saved the latest changes yet; use those in memory
+        PromotedBuildsSimplePlugin plugin =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+        if (plugin != null) for (Run<?,?> run : plugin.getWriter().getUnsaved(job)) {
+            PromoteAction pa = run.getAction(PromoteAction.class);
+            removeNumber(run.getNumber());
+            if (pa != null && pa.getLevelValue() > 0)
+                add(run.getNumber(), pa.getLevelValue());
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+
+    /**
+     * Record a change in promotion level for a build.
+     * @param levelValue New level, or zero if not promoted
+     */
+    public synchronized void update(int number, int levelValue) throws IOException {
+        checkEpoch();
+        if (!removeNumber(number) && levelValue == 0) return;
+        if (levelValue > 0) add(number, levelValue);
+        save();
+    }
+
+    /** Remove a deleted build from the index. */
+    public synchronized void remove(int number) throws IOException {
+        checkEpoch();
+        if (removeNumber(number)) save();
+    }
+
+    /**
+     * Build numbers promoted to the given level or higher, newest first.
+     * Results are remembered until the index or the promotion levels change,
+     * so repeated selections from the same job do not recompute them.
+     */
+    public synchronized List<Integer> getBuilds(int minLevel) {
+        checkEpoch();
+        minLevel = Math.max(minLevel, 1);
+        if (memo == null) memo = new HashMap<Integer,List<Integer>>();
+        List<Integer> result = memo.get(minLevel);
+        if (result == null)
+            memo.put(minLevel, result = findBuilds(minLevel));
+        return result;
+    }
+
+    private List<Integer> findBuilds(int minLevel) {
+        SortedMap<Integer,TreeSet<Integer>> matches = builds.tailMap(minLevel);
+        if (matches.isEmpty()) return Collections.emptyList();
+        TreeSet<Integer> result = new TreeSet<Integer>(Collections.reverseOrder());
+        for (TreeSet<Integer> numbers : matches.values())
+            result.addAll(numbers);
+        return Collections.unmodifiableList(new ArrayList<Integer>(result));
+    }
+
+    /**
+     * Number of newest build promoted to the given level or higher, or -1 if none.
+     */
+    public synchronized int getLatest(int minLevel) {
+        checkEpoch();
+        int latest = -1;
+        for (TreeSet<Integer> numbers : builds.tailMap(Math.max(minLevel, 1)).values())
+            latest = Math.max(latest, numbers.last());
+        return latest;
+    }
+
+    /**
+     * Number of the newest build at each level, without loading any builds.
+     * @param levelCount Number of configured levels
+     * @return build numbers by level value minus one, -1 where no build has that level
+     */
+    public synchronized int[] getLatestByLevel(int levelCount) {
+        checkEpoch();
+        int[] latest = new int[levelCount];
+        for (int i = 0; i < levelCount; i++) {
+            TreeSet<Integer> numbers = builds.get(i + 1);
+            latest[i] = numbers != null ? numbers.last() : -1;
+        }
+        return latest;
+    }
+
+    /* Convert level values if levels were renumbered since the index was saved */
+    private void checkEpoch() {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (table == null || epoch >= table.getEpoch()) return;
+        Map<Integer,TreeSet<Integer>> old = new TreeMap<Integer,TreeSet<Integer>>(builds);
+        builds.clear();
+        memo = null;
+        for (Map.Entry<Integer,TreeSet<Integer>> entry : old.entrySet()) {
+            int levelValue = table.renumber(entry.getKey(), epoch);
+            if (levelValue > 0)
+                for (int number : entry.getValue())
+                    add(number, levelValue);
+        }
+        epoch = table.getEpoch();
+        try {
+            save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+        }
+    }
+
+    void add(int number, int levelValue) {
+        memo = null;
+        changed();
+        TreeSet<Integer> numbers = builds.get(levelValue);
+        if (numbers == null) builds.put(levelValue, numbers = new TreeSet<Integer>());
+        numbers.add(number);
+    }
+
+    private boolean removeNumber(int number) {
+        memo = null;
+        changed();
+        for (Map.Entry<Integer,TreeSet<Integer>> entry : builds.entrySet()) {
+            if (entry.getValue().remove(number)) {
+                if (entry.getValue().isEmpty()) builds.remove(entry.getKey());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void save() throws IOException {
+        if (BulkChange.contains(this)) return;
+        file.write(this);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionIndex.class.getName());
+}
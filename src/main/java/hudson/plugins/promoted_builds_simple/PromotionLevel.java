@@ -23,6 +23,7 @@
  */
 package hudson.plugins.promoted_builds_simple;
 
+import hudson.Util;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 /**
@@ -32,17 +33,54 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class PromotionLevel {
     private String name, icon;
     private Boolean isAutoKeep;
+    private AutoPromotion autoPromotion;
+    private Integer keepLatest;
 
-    @DataBoundConstructor
     public PromotionLevel(String name, String icon, boolean isAutoKeep) {
+        this(name, icon, isAutoKeep, null);
+    }
+
+    public PromotionLevel(String name, String icon, boolean isAutoKeep,
+                          AutoPromotion autoPromotion) {
+        this(name, icon, isAutoKeep, null, autoPromotion);
+    }
+
+    /**
+     * @param keepLatest Number of builds at this level or higher to keep, or empty to
+     *   keep all of them; only used with isAutoKeep
+     * @param autoPromotion Rule to promote builds to this level when they complete, or null
+     */
+    @DataBoundConstructor
+    public PromotionLevel(String name, String icon, boolean isAutoKeep, String keepLatest,
+                          AutoPromotion autoPromotion) {
         this.name = name;
         this.icon = icon;
         this.isAutoKeep = isAutoKeep;
+        this.keepLatest = parseKeepLatest(keepLatest);
+        this.autoPromotion = autoPromotion;
+    }
+
+    /* A value that is not a number keeps all builds, as when empty */
+    private static Integer parseKeepLatest(String value) {
+        String keep = Util.fixEmptyAndTrim(value);
+        if (keep != null) try {
+            return Math.max(Integer.parseInt(keep), 1);
+        } catch (NumberFormatException e) {
+            // Reported by the form check; ignore it here
+        }
+        return null;
     }
 
     public String getName() { return name; }
     public String getIcon() { return icon; }
     public boolean isAutoKeep() { return isAutoKeep; }
+    public AutoPromotion getAutoPromotion() { return autoPromotion; }
+
+    /**
+     * Number of newest builds at this level or higher that are kept by isAutoKeep,
+     * or null to keep all of them.
+     */
+    public Integer getKeepLatest() { return isAutoKeep ? keepLatest : null; }
 
     // Default to true when upgrading from older versions
     private Object readResolve() {
@@ -26,7 +26,6 @@ package hudson.plugins.promoted_builds_simple;
 import hudson.Extension;
 import hudson.model.ParameterValue;
 import hudson.model.SimpleParameterDefinition;
-import hudson.model.StringParameterValue;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
@@ -35,35 +34,58 @@ import org.kohsuke.stapler.StaplerRequest;
  * Build parameter to select a promotion level from the list of configured levels.
  * @author Alan Harder
  */
-public class PromotionLevelParameter extends SimpleParameterDefinition {
+public class PromotionLevelParameter extends SimpleParameterDefinition
+        implements LevelMigration.Renumberable {
     private int defaultLevel;
+    // Renumbering epoch in which defaultLevel was chosen; null for zero
+    private Integer epoch;
 
     @DataBoundConstructor
     public PromotionLevelParameter(String name, int defaultLevel, String description) {
         super(name, description);
         this.defaultLevel = defaultLevel;
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (table != null && table.getEpoch() > 0) epoch = table.getEpoch();
+        LevelMigration.register(this);
     }
 
-    public int getDefaultLevel() {
+    private Object readResolve() {
+        LevelMigration.register(this);
+        return this;
+    }
+
+    /** Default level in the current numbering, or zero if it was removed. */
+    public synchronized int getDefaultLevel() {
+        renumber(PromoteAction.getLevelTable());
         return defaultLevel;
     }
 
+    /* Store defaultLevel in the current numbering, so the job is saved that way */
+    public synchronized void renumber(PromotionLevelTable table) {
+        int from = epoch != null ? epoch : 0;
+        if (table == null || from >= table.getEpoch()) return;
+        defaultLevel = table.renumber(defaultLevel, from);
+        epoch = table.getEpoch();
+    }
+
     @Override
     public ParameterValue getDefaultParameterValue() {
-        return new StringParameterValue(
-                getName(), Integer.toString(defaultLevel), getDescription());
+        return new PromotionLevelParameterValue(getName(), getDefaultLevel(), getDescription());
     }
 
+    /**
+     * Value from CLI or HTTP parameter: level value, or level name.
+     * @throws IllegalArgumentException if no such level is configured
+     */
     @Override
     public ParameterValue createValue(String value) {
-        return new StringParameterValue(getName(), value, getDescription());
+        return new PromotionLevelParameterValue(
+                getName(), PromotionLevelParameterValue.resolve(value), getDescription());
     }
 
     @Override
     public ParameterValue createValue(StaplerRequest req, JSONObject jo) {
-        StringParameterValue value = req.bindJSON(StringParameterValue.class, jo);
-        value.setDescription(getDescription());
-        return value;
+        return createValue(jo.getString("value"));
     }
 
     @Extension
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.ParameterValue;
+import hudson.util.VariableResolver;
+import org.kohsuke.stapler.export.Exported;
+
+/**
+ * Value of a {@link PromotionLevelParameter}: a promotion level value, checked
+ * against the configured levels when the value is created.
+ * @author Alan Harder
+ */
+public class PromotionLevelParameterValue extends ParameterValue {
+    /** Environment variable read by {@link PromotedBuildSelector} */
+    static final String LEVEL_PARAM_NAME = "COPY_PROMOTION_LEVEL";
+
+    private int level;
+    // Renumbering epoch in which level was chosen; null for zero
+    private Integer epoch;
+
+    public PromotionLevelParameterValue(String name, int level, String description) {
+        super(name, description);
+        this.level = level;
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (table != null && table.getEpoch() > 0) epoch = table.getEpoch();
+    }
+
+    /** Level value in the current numbering, or zero if the level was removed. */
+    @Exported public synchronized int getLevel() {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        int from = epoch != null ? epoch : 0;
+        return table != null && from < table.getEpoch() ? table.renumber(level, from) : level;
+    }
+
+    /**
+     * Store level in the current numbering, so the build can be saved that way.
+     * @return true if changed, so the build should be saved
+     */
+    synchronized boolean renumber(PromotionLevelTable table) {
+        int from = epoch != null ? epoch : 0;
+        if (from >= table.getEpoch()) return false;
+        level = table.renumber(level, from);
+        epoch = table.getEpoch();
+        return true;
+    }
+
+    /** Name of the promotion level, or null if it was removed since this value was set. */
+    public String getLevelName() {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        PromotionLevel src = table != null ? table.get(getLevel()) : null;
+        return src != null ? src.getName() : null;
+    }
+
+    /**
+     * Adds the level value under the name of the parameter, and as
+     * <tt>COPY_PROMOTION_LEVEL</tt> unless that is already set.
+     */
+    @Override
+    public void buildEnvVars(AbstractBuild<?,?> build, EnvVars env) {
+        String value = Integer.toString(getLevel());
+        env.put(getName(), value);
+        if (!env.containsKey(LEVEL_PARAM_NAME)) env.put(LEVEL_PARAM_NAME, value);
+    }
+
+    @Override
+    public VariableResolver<String> createVariableResolver(AbstractBuild<?,?> build) {
+        return new VariableResolver<String>() {
+            public String resolve(String name) {
+                return getName().equals(name) ? Integer.toString(getLevel()) : null;
+            }
+        };
+    }
+
+    /**
+     * Find a promotion level by value or name.
+     * @return level value
+     * @throws IllegalArgumentException if no such level is configured
+     */
+    public static int resolve(String value) {
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        int result = 0;
+        if (value != null && table != null) try {
+            result = Integer.parseInt(value.trim());
+            if (table.get(result) == null) result = 0;
+        } catch (NumberFormatException e) {
+            result = table.getValue(value.trim());
+        }
+        if (result <= 0)
+            throw new IllegalArgumentException(Messages.PromotionLevelParameter_NoLevel(value));
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (getName() != null ? getName().hashCode() : 0) + getLevel();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof PromotionLevelParameterValue)) return false;
+        PromotionLevelParameterValue other = (PromotionLevelParameterValue)obj;
+        return getLevel() == other.getLevel()
+                && (getName() == null ? other.getName() == null : getName().equals(other.getName()));
+    }
+
+    @Override
+    public String toString() {
+        return "(PromotionLevelParameterValue) " + getName() + "='" + getLevel() + "'";
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Immutable snapshot of the configured promotion levels.
+ * A new table replaces the old one when levels are configured, so readers
+ * never see a partially updated list.
+ * @author Alan Harder
+ */
+public final class PromotionLevelTable {
+    private final List<PromotionLevel> levels;
+    private final Map<String,Integer> valueByName;
+    private final List<int[]> renumberings;
+    private final int renumberingBase;
+    private final long version;
+    private volatile String json, etag;
+
+    PromotionLevelTable(List<PromotionLevel> levels, long version) {
+        this(levels, Collections.<int[]>emptyList(), 0, version);
+    }
+
+    /**
+     * @param renumberings Each change in numbering of the levels since the base epoch,
+     *   as an array mapping each old level value to its new value (zero if removed)
+     * @param renumberingBase Number of earlier renumberings dropped once no stored
+     *   level value needed them
+     */
+    PromotionLevelTable(List<PromotionLevel> levels, List<int[]> renumberings,
+                        int renumberingBase, long version) {
+        this.levels = Collections.unmodifiableList(new ArrayList<PromotionLevel>(levels));
+        Map<String,Integer> map = new HashMap<String,Integer>();
+        for (int i = 0; i < levels.size(); i++)
+            if (!map.containsKey(levels.get(i).getName()))
+                map.put(levels.get(i).getName(), i + 1);
+        this.valueByName = Collections.unmodifiableMap(map);
+        this.renumberings = Collections.unmodifiableList(new ArrayList<int[]>(renumberings));
+        this.renumberingBase = renumberingBase;
+        this.version = version;
+    }
+
+    public List<PromotionLevel> getLevels() { return levels; }
+    public int size() { return levels.size(); }
+
+    /**
+     * Incremented each time levels are configured, for use as a cache key.
+     */
+    public long getVersion() { return version; }
+
+    /**
+     * Levels as JSON, for building the promotion menu in the browser:
+     * <tt>{"levels":[{"value":1,"name":"QA build","icon":"qa.gif","autoKeep":true}, ...]}</tt>
+     */
+    public String toJSON() {
+        if (json == null) {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < levels.size(); i++) {
+                JSONObject level = new JSONObject();
+                level.put("value", i + 1);
+                level.put("name", levels.get(i).getName());
+                level.put("icon", levels.get(i).getIcon());
+                level.put("autoKeep", levels.get(i).isAutoKeep());
+                array.add(level);
+            }
+            JSONObject result = new JSONObject();
+            result.put("levels", array);
+            json = result.toString();
+        }
+        return json;
+    }
+
+    /**
+     * Digest of {@link #toJSON}; unlike the version this is the same after a restart,
+     * so cached copies of the levels stay valid until the levels are changed.
+     */
+    public String getETag() {
+        if (etag == null) etag = Util.getDigestOf(toJSON());
+        return etag;
+    }
+
+    /**
+     * Number of times levels have been renumbered by reordering or removing levels.
+     * Stored level values are tagged with the epoch in which they were assigned.
+     */
+    public int getEpoch() { return renumberingBase + renumberings.size(); }
+
+    /**
+     * Oldest epoch whose level values can be converted; older renumberings were
+     * dropped after all stored level values were converted past them.
+     */
+    public int getRenumberingBase() { return renumberingBase; }
+
+    /**
+     * Convert a level value assigned in an earlier epoch to the current numbering.
+     * @return current level value, or zero if the level was removed
+     */
+    public int renumber(int value, int fromEpoch) {
+        for (int i = Math.max(fromEpoch - renumberingBase, 0);
+                i < renumberings.size() && value > 0; i++) {
+            int[] mapping = renumberings.get(i);
+            if (value < mapping.length) value = mapping[value];
+        }
+        return value;
+    }
+
+    /**
+     * Compute the renumbering from an older list of levels to this one.
+     * Levels are matched by name; a level not found by name that is in the same
+     * position as a new name is taken as renamed.
+     * @return mapping of old level value to new, or null if no value changes
+     */
+    int[] getRenumbering(List<PromotionLevel> oldLevels) {
+        Set<String> oldNames = new HashSet<String>();
+        for (PromotionLevel level : oldLevels)
+            oldNames.add(level.getName());
+        int[] mapping = new int[oldLevels.size() + 1];
+        boolean changed = false;
+        for (int i = 1; i < mapping.length; i++) {
+            mapping[i] = getValue(oldLevels.get(i - 1).getName());
+            if (mapping[i] == 0 && i <= levels.size()
+                    && !oldNames.contains(levels.get(i - 1).getName()))
+                mapping[i] = i;
+            if (mapping[i] != i) changed = true;
+        }
+        return changed ? mapping : null;
+    }
+
+    /**
+     * Get level by its value (position in the list, starting with one).
+     * @return level, or null if no level has this value
+     */
+    public PromotionLevel get(int value) {
+        return value > 0 && value <= levels.size() ? levels.get(value - 1) : null;
+    }
+
+    /**
+     * Get value of the level with the given name.
+     * @return level value, or zero if no level has this name
+     */
+    public int getValue(String name) {
+        Integer value = valueByName.get(name);
+        return value != null ? value : 0;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Hudson;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives notification of changes in the promotion level of builds.
+ * Notifications are delivered on a background thread once the build with the change
+ * is saved, so listeners do not delay the request making the change, and do not hear
+ * of changes that are not saved.  If the queue of
+ * pending notifications is full, new notifications are dropped.
+ * @author Alan Harder
+ */
+public abstract class PromotionListener implements ExtensionPoint {
+    private static final int THREADS = 2, QUEUE_SIZE = 1000, ATTEMPTS = 3;
+
+    /**
+     * Build promoted to a higher level.
+     * @param oldLevel Previous level value, or zero if it was not promoted
+     */
+    public void onPromoted(Run<?,?> run, int oldLevel, int newLevel) { }
+
+    /**
+     * Build changed to a lower, non-zero level.
+     */
+    public void onDemoted(Run<?,?> run, int oldLevel, int newLevel) { }
+
+    /**
+     * Promotion removed from build.
+     */
+    public void onCleared(Run<?,?> run, int oldLevel) { }
+
+    public static ExtensionList<PromotionListener> all() {
+        return Hudson.getInstance().getExtensionList(PromotionListener.class);
+    }
+
+    /**
+     * Queue notification of all listeners of a change in promotion level.
+     */
+    static void fire(final Run<?,?> run, final int oldLevel, final int newLevel) {
+        if (oldLevel == newLevel) return;
+        final PromotionMetrics metrics = PromotionMetrics.get();
+        ThreadPoolExecutor executor = getExecutor();
+        if (executor == null) {   // Plugin stopped
+            metrics.eventsDropped.addAndGet(all().size());
+            return;
+        }
+        for (final PromotionListener listener : all()) try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (int attempt = 1; ; attempt++) try {
+                        listener.deliver(run, oldLevel, newLevel);
+                        metrics.eventsDelivered.incrementAndGet();
+                        return;
+                    } catch (RuntimeException e) {
+                        if (attempt >= ATTEMPTS) {
+                            metrics.eventsFailed.incrementAndGet();
+                            LOGGER.log(Level.WARNING, listener + " failed for " + run, e);
+                            return;
+                        }
+                        metrics.eventsRetried.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.eventsDropped.incrementAndGet();
+        }
+    }
+
+    private void deliver(Run<?,?> run, int oldLevel, int newLevel) {
+        if (newLevel == 0)
+            onCleared(run, oldLevel);
+        else if (newLevel > oldLevel)
+            onPromoted(run, oldLevel, newLevel);
+        else
+            onDemoted(run, oldLevel, newLevel);
+    }
+
+    /**
+     * Pool delivering notifications; the plugin creates one when started and shuts
+     * it down when stopped.
+     */
+    static ThreadPoolExecutor createExecutor() {
+        return new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory());
+    }
+
+    /* Pool of the running plugin, or null if not running */
+    private static ThreadPoolExecutor getExecutor() {
+        Hudson hudson = Hudson.getInstance();
+        PromotedBuildsSimplePlugin plugin =
+                hudson != null ? hudson.getPlugin(PromotedBuildsSimplePlugin.class) : null;
+        return plugin != null ? plugin.getListenerExecutor() : null;
+    }
+
+    static int getQueueDepth() {
+        ThreadPoolExecutor executor = getExecutor();
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionListener.class.getName());
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Administration page for promoted builds, under Manage Jenkins.
+ * @author Alan Harder
+ */
+@Extension
+public class PromotionManagementLink extends ManagementLink {
+    public String getIconFileName() { return "star-gold.gif"; }
+    public String getUrlName() { return "promotedBuilds"; }
+    public String getDisplayName() { return Messages.PromotionManagementLink_DisplayName(); }
+    @Override public String getDescription() {
+        return Messages.PromotionManagementLink_Description();
+    }
+
+    public PromotionMetrics getMetrics() { return PromotionMetrics.get(); }
+
+    public PromotedBuildsSimplePlugin getPlugin() {
+        return Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+    }
+
+    /* Metrics in JSON format, for monitoring */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        PromotionMetrics.get().toJSON().write(rsp.getWriter());
+    }
+
+    /* Start or resume update of stored level values after levels were renumbered */
+    public void doStartMigration(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        LevelMigration migration = getPlugin().getMigration();
+        if (!"POST".equals(req.getMethod()) || migration == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        migration.start(parseInt(req.getParameter("threads"), migration.getThreads()),
+                parseInt(req.getParameter("rate"), migration.getMaxBuildsPerSecond()));
+        rsp.sendRedirect(".");
+    }
+
+    public void doCancelMigration(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        LevelMigration migration = getPlugin().getMigration();
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        if (migration != null) migration.cancel();
+        rsp.sendRedirect(".");
+    }
+
+    public void doCancelWarmup(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        if (!"POST".equals(req.getMethod())) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        getPlugin().getWarmup().cancel();
+        rsp.sendRedirect(".");
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Counters and histograms for the plugin's work, shown on the management page.
+ * @author Alan Harder
+ */
+public final class PromotionMetrics {
+    private static final PromotionMetrics INSTANCE = new PromotionMetrics();
+
+    public static PromotionMetrics get() { return INSTANCE; }
+
+    /** Calls to PromotedBuildSelector.getBuild */
+    public final AtomicLong selections = new AtomicLong();
+    /** Calls to PromotedBuildSelector.isSelectable */
+    public final AtomicLong evaluations = new AtomicLong();
+    public final AtomicLong iconCacheHits = new AtomicLong();
+    public final AtomicLong iconCacheMisses = new AtomicLong();
+    public final AtomicLong uploads = new AtomicLong();
+    /** PromotionListener notifications */
+    public final AtomicLong eventsDelivered = new AtomicLong();
+    public final AtomicLong eventsRetried = new AtomicLong();
+    public final AtomicLong eventsFailed = new AtomicLong();
+    public final AtomicLong eventsDropped = new AtomicLong();
+    /** Builds promoted by AutoPromotion rules, and builds not checked as the queue was full */
+    public final AtomicLong autoPromotions = new AtomicLong();
+    public final AtomicLong autoPromotionsDropped = new AtomicLong();
+    /** Builds whose keep-forever was released by retention limits */
+    public final AtomicLong retentionReleased = new AtomicLong();
+
+    /** Builds examined per selection */
+    public final Histogram buildsScanned = new Histogram("builds");
+    /** Time per selection */
+    public final Histogram selectionTime = new Histogram("us");
+    /** Time to save a build after promotion */
+    public final Histogram saveTime = new Histogram("us");
+
+    private PromotionMetrics() { }
+
+    public long getSelections() { return selections.get(); }
+    public long getEvaluations() { return evaluations.get(); }
+    public long getIconCacheHits() { return iconCacheHits.get(); }
+    public long getIconCacheMisses() { return iconCacheMisses.get(); }
+    public long getUploads() { return uploads.get(); }
+    public long getEventsDelivered() { return eventsDelivered.get(); }
+    public long getEventsRetried() { return eventsRetried.get(); }
+    public long getEventsFailed() { return eventsFailed.get(); }
+    public long getEventsDropped() { return eventsDropped.get(); }
+    public int getEventsQueued() { return PromotionListener.getQueueDepth(); }
+    public long getAutoPromotions() { return autoPromotions.get(); }
+    public long getAutoPromotionsDropped() { return autoPromotionsDropped.get(); }
+    public int getAutoPromotionsQueued() { return AutoPromoter.getQueueDepth(); }
+    public long getRetentionReleased() { return retentionReleased.get(); }
+    public Histogram getBuildsScanned() { return buildsScanned; }
+    public Histogram getSelectionTime() { return selectionTime; }
+    public Histogram getSaveTime() { return saveTime; }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("selections", getSelections());
+        json.put("evaluations", getEvaluations());
+        json.put("iconCacheHits", getIconCacheHits());
+        json.put("iconCacheMisses", getIconCacheMisses());
+        json.put("uploads", getUploads());
+        json.put("eventsDelivered", getEventsDelivered());
+        json.put("eventsRetried", getEventsRetried());
+        json.put("eventsFailed", getEventsFailed());
+        json.put("eventsDropped", getEventsDropped());
+        json.put("eventsQueued", getEventsQueued());
+        json.put("autoPromotions", getAutoPromotions());
+        json.put("autoPromotionsDropped", getAutoPromotionsDropped());
+        json.put("autoPromotionsQueued", getAutoPromotionsQueued());
+        json.put("retentionReleased", getRetentionReleased());
+        json.put("buildsScanned", buildsScanned.toJSON());
+        json.put("selectionTime", selectionTime.toJSON());
+        json.put("saveTime", saveTime.toJSON());
+        return json;
+    }
+
+    /**
+     * Histogram with power-of-two buckets; bucket i counts values below 2^i.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 40;
+        private final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(),
+                                 max = new AtomicLong();
+
+        Histogram(String unit) { this.unit = unit; }
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get());
+        }
+
+        public String getUnit() { return unit; }
+        public long getCount() { return count.get(); }
+        public long getMax() { return max.get(); }
+        public long getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / n;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile (0-100).
+         */
+        public long getPercentile(int percentile) {
+            long n = count.get(), seen = 0;
+            if (n == 0) return 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen * 100 >= n * percentile)
+                    return Math.min(i == 0 ? 0 : 1L << i, getMax());
+            }
+            return getMax();
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("unit", unit);
+            json.put("count", getCount());
+            json.put("mean", getMean());
+            json.put("p50", getPercentile(50));
+            json.put("p95", getPercentile(95));
+            json.put("p99", getPercentile(99));
+            json.put("max", getMax());
+            JSONArray counts = new JSONArray();
+            for (int i = 0; i < BUCKETS; i++)
+                counts.add(buckets.get(i));
+            json.put("buckets", counts);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.util.DaemonThreadFactory;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional scan of all jobs after startup to load their promotion indexes,
+ * so the first copy steps after a restart do not have to load build records.
+ * Runs in the background; Jenkins startup does not wait for it.
+ * @author Alan Harder
+ */
+public final class PromotionWarmup {
+    private volatile ExecutorService executor;
+    private final AtomicInteger jobsTotal = new AtomicInteger(), jobsDone = new AtomicInteger();
+    private volatile long startTime, endTime;
+
+    @Initializer(after=InitMilestone.JOB_LOADED)
+    public static void init() {
+        PromotedBuildsSimplePlugin plugin =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+        if (plugin != null && plugin.isWarmUp()) plugin.getWarmup().start();
+    }
+
+    /**
+     * Start loading promotion indexes of all jobs, one job per task on a pool
+     * sized to the number of processors.
+     */
+    synchronized void start() {
+        if (isRunning()) return;
+        jobsTotal.set(0);
+        jobsDone.set(0);
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new DaemonThreadFactory());
+        executor = pool;
+        List<Job> jobs = Hudson.getInstance().getAllItems(Job.class);
+        jobsTotal.set(jobs.size());
+        for (final Job<?,?> job : jobs) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        // Loads the index file, or rebuilds it from the build records
+                        PromotionIndex.of(job).getBuilds(1);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to load promotions of " + job, e);
+                    }
+                    if (jobsDone.incrementAndGet() == jobsTotal.get()) finished();
+                }
+            });
+        }
+        pool.shutdown();
+        if (jobs.isEmpty()) finished();
+    }
+
+    private synchronized void finished() {
+        if (endTime > 0) return;
+        endTime = System.currentTimeMillis();
+        LOGGER.info("Loaded promotions of " + jobsDone.get() + " jobs in "
+                    + (endTime - startTime) + " ms");
+    }
+
+    /** Stop scanning; jobs not yet scanned load their promotions when first used. */
+    public void cancel() {
+        ExecutorService e = executor;
+        if (e != null && !e.isTerminated()) {
+            e.shutdownNow();
+            finished();
+        }
+    }
+
+    public boolean isStarted() { return startTime > 0; }
+
+    public boolean isRunning() {
+        ExecutorService e = executor;
+        return e != null && !e.isTerminated();
+    }
+
+    public int getJobsTotal() { return jobsTotal.get(); }
+    public int getJobsDone() { return jobsDone.get(); }
+
+    /** Time taken so far, or total time once finished. */
+    public long getElapsedMillis() {
+        if (startTime == 0) return 0;
+        return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionWarmup.class.getName());
+}
@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background writer for promotion changes, used when write-behind is enabled.
+ * Repeated changes to the same build before it is written result in one save.
+ * @author Alan Harder
+ */
+public final class PromotionWriter {
+    private static final long DELAY_MS = 1000;
+
+    /* Builds to save */
+    private final Set<Run> pending = new LinkedHashSet<Run>();
+    /* Batch now being saved */
+    private Set<Run> writing = Collections.emptySet();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    private boolean scheduled;
+    private long written, coalesced, lastFlushMillis, maxFlushMillis;
+
+    /** Queue a build to be saved. */
+    public synchronized void submit(Run<?,?> run) {
+        if (!pending.add(run)) coalesced++;
+        if (!scheduled) {
+            scheduled = true;
+            executor.schedule(new Runnable() {
+                public void run() { flush(); }
+            }, DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Save all queued builds now, as the system user. */
+    public void flush() {
+        new SystemTask() {
+            protected void doRun() { writePending(); }
+        }.run();
+    }
+
+    private void writePending() {
+        Set<Run> batch;
+        synchronized (this) {
+            scheduled = false;
+            if (pending.isEmpty()) return;
+            writing = batch = new LinkedHashSet<Run>(pending);
+            pending.clear();
+        }
+        long start = System.currentTimeMillis();
+        for (Run run : batch) try {
+            PromoteAction.write(run);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save promotion of " + run, e);
+        }
+        long time = System.currentTimeMillis() - start;
+        synchronized (this) {
+            writing = Collections.emptySet();
+            written += batch.size();
+            lastFlushMillis = time;
+            maxFlushMillis = Math.max(maxFlushMillis, time);
+        }
+    }
+
+    /** Save all queued builds and stop the background writer. */
+    public void shutdown() {
+        executor.shutdown();
+        flush();
+    }
+
+    /**
+     * Builds of the job queued or being saved, whose build.xml may not yet have
+     * the promotion level they have in memory.
+     */
+    public synchronized List<Run<?,?>> getUnsaved(Job<?,?> job) {
+        List<Run<?,?>> result = new ArrayList<Run<?,?>>();
+        for (Run run : writing)
+            if (run.getParent() == job) result.add(run);
+        for (Run run : pending)
+            if (run.getParent() == job && !writing.contains(run)) result.add(run);
+        return result;
+    }
+
+    public synchronized int getQueueDepth() { return pending.size(); }
+    public synchronized long getWrittenCount() { return written; }
+    public synchronized long getCoalescedCount() { return coalesced; }
+    public synchronized long getLastFlushMillis() { return lastFlushMillis; }
+    public synchronized long getMaxFlushMillis() { return maxFlushMillis; }
+
+    private static final Logger LOGGER = Logger.getLogger(PromotionWriter.class.getName());
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Release keep-forever on builds no longer among the latest builds kept for a level
+ * (see {@link PromotionLevel#getKeepLatest}).  Only builds marked keep-forever by
+ * promotion are released, not builds the user chose to keep.  Runs on a background
+ * thread after promotions change, releasing a limited number of builds at a time.
+ * @author Alan Harder
+ */
+final class Retention {
+    static final int BATCH_SIZE = 50;
+    private static final long BATCH_DELAY_MILLIS = 1000;
+
+    /** Jobs waiting to be checked; a job is queued once however many changes are made */
+    private static final Set<Job> PENDING = new HashSet<Job>();
+
+    private Retention() { }
+
+    /**
+     * Check the job soon, if any level limits the builds kept.
+     */
+    static void schedule(Job<?,?> job) {
+        schedule(job, 0);
+    }
+
+    private static void schedule(final Job<?,?> job, long delay) {
+        PromotedBuildsSimplePlugin plugin =
+                Hudson.getInstance().getPlugin(PromotedBuildsSimplePlugin.class);
+        ScheduledExecutorService executor = plugin != null ? plugin.getRetentionExecutor() : null;
+        PromotionLevelTable table = PromoteAction.getLevelTable();
+        if (executor == null || table == null || !hasLimits(table.getLevels())) return;
+        synchronized (PENDING) {
+            if (!PENDING.add(job)) return;
+        }
+        try {
+            executor.schedule(new SystemTask() {
+                protected void doRun() {
+                    synchronized (PENDING) {
+                        PENDING.remove(job);
+                    }
+                    try {
+                        // Continue later if there may be more to do
+                        if (release(job, BATCH_SIZE) == BATCH_SIZE)
+                            schedule(job, BATCH_DELAY_MILLIS);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to apply retention to " + job, e);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the job is checked again after the next change
+            synchronized (PENDING) {
+                PENDING.remove(job);
+            }
+        }
+    }
+
+    private static boolean hasLimits(List<PromotionLevel> levels) {
+        for (PromotionLevel level : levels)
+            if (level.getKeepLatest() != null) return true;
+        return false;
+    }
+
+    /**
+     * Release keep-forever on up to max builds of the job, oldest first.
+     * @return number of builds released
+     */
+    static int release(Job<?,?> job, int max) {
+        List<PromotionLevel> levels = PromoteAction.getLevelTable().getLevels();
+        PromotionIndex index = PromotionIndex.of(job);
+        // Builds still kept by some level: all builds at an auto-keep level or higher,
+        // or the latest keepLatest builds if the level sets that
+        Set<Integer> keep = new HashSet<Integer>();
+        for (int i = 1; i <= levels.size(); i++) {
+            PromotionLevel level = levels.get(i - 1);
+            if (!level.isAutoKeep()) continue;
+            List<Integer> numbers = index.getBuilds(i);
+            Integer limit = level.getKeepLatest();
+            keep.addAll(limit != null && limit < numbers.size() ? numbers.subList(0, limit) : numbers);
+        }
+        List<Integer> promoted = index.getBuilds(1);
+        int released = 0;
+        for (int i = promoted.size() - 1; i >= 0 && released < max; i--) {
+            if (keep.contains(promoted.get(i))) continue;
+            Run<?,?> run = job.getBuildByNumber(promoted.get(i));
+            PromoteAction pa = run != null ? run.getAction(PromoteAction.class) : null;
+            if (pa == null || !pa.isAutoKept()) continue;
+            int levelValue = pa.getLevelValue();
+            try {
+                synchronized (PromoteAction.lockFor(run)) {
+                    // Skip if promoted again since the kept builds were found
+                    if (run.getAction(PromoteAction.class) != pa || !pa.isAutoKept()
+                            || pa.getLevelValue() != levelValue) continue;
+                    pa.setAutoKept(false);
+                    if (run.isKeepLog())
+                        run.keepLog(false);   // Also saves the build
+                    else
+                        run.save();
+                }
+                released++;
+                PromotionMetrics.get().retentionReleased.incrementAndGet();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to release " + run, e);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Executor for retention checks; the plugin creates one when started and shuts
+     * it down when stopped.
+     */
+    static ScheduledExecutorService createExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Retention.class.getName());
+}
@@ -0,0 +1,243 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2011, Alan Harder
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package hudson.plugins.promoted_builds_simple;
+
+import hudson.EnvVars;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixProject;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Cause.UserCause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.plugins.copyartifact.BuildFilter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.jvnet.hudson.test.ExtractResourceSCM;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Scalability checks with large build histories:  mvn -P scalability test
+ * <p>
+ * Sizes and limits are set by system properties (see the scalability profile in pom.xml),
+ * for example -Dscalability.builds=10000 -Dscalability.maxSelectMillis=20.
+ * Each test prints its measurements, and fails if one is over its limit.
+ * No network access is needed.
+ * @author Alan Harder
+ */
+public class PromotedBuildsScalabilityTest extends HudsonTestCase {
+    private static final int BUILDS = Integer.getInteger("scalability.builds", 2000);
+    private static final int CONFIGURATIONS = Integer.getInteger("scalability.configurations", 200);
+    private static final int MODULES = Integer.getInteger("scalability.modules", 50);
+    private static final int SELECTIONS = Integer.getInteger("scalability.selections", 100);
+    private static final long MAX_SELECT_MICROS =
+            Long.getLong("scalability.maxSelectMillis", 20) * 1000;
+    private static final double MAX_EVALUATIONS =
+            Double.parseDouble(System.getProperty("scalability.maxEvaluations", "2"));
+    private static final long MAX_PAGE_MILLIS = Long.getLong("scalability.maxPageMillis", 1000);
+    private static final long MAX_HEAP_PER_BUILD = Long.getLong("scalability.maxHeapPerBuild", 8192);
+
+    /**
+     * Job with a long build history: selection time and builds evaluated per selection,
+     * build page render time, and heap used by loaded builds.
+     */
+    public void testLargeHistory() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        String name = job.getName();
+        long heapBefore = usedHeap();
+        writeBuilds(job, BUILDS);
+        hudson.reload();
+        job = (FreeStyleProject)hudson.getItem(name);
+        assertEquals(BUILDS, job.getBuilds().size());
+        long heapPerBuild = (usedHeap() - heapBefore) / BUILDS;
+
+        // Builds share the same PromoteAction when not promoted
+        Map<PromoteAction,Boolean> actions = new IdentityHashMap<PromoteAction,Boolean>();
+        int promoted = 0;
+        for (FreeStyleBuild build : job.getBuilds()) {
+            PromoteAction pa = build.getAction(PromoteAction.class);
+            actions.put(pa, Boolean.TRUE);
+            if (pa.getLevelValue() > 0) promoted++;
+        }
+        assertEquals("PromoteAction instances", promoted + 1, actions.size());
+
+        // Oldest builds have the highest level, so the selector must skip newer builds
+        long coldMicros = select(job, 3, 1);
+        long selectMicros = select(job, 3, SELECTIONS);
+        double evaluations = evaluationsPerSelection(job, 3);
+
+        WebClient wc = new WebClient();
+        Run<?,?> build = job.getBuildByNumber(BUILDS / 2);
+        wc.getPage(build);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) wc.getPage(build);
+        long pageMillis = (System.currentTimeMillis() - start) / 10;
+
+        System.out.println("Scalability: " + BUILDS + " builds; first selection " + coldMicros
+                + " us, then " + selectMicros + " us, " + evaluations + " builds evaluated"
+                + "; build page " + pageMillis + " ms; heap " + heapPerBuild + " bytes per build");
+        assertTrue("selection took " + selectMicros + " us", selectMicros <= MAX_SELECT_MICROS);
+        assertTrue(evaluations + " builds evaluated per selection", evaluations <= MAX_EVALUATIONS);
+        assertTrue("build page took " + pageMillis + " ms", pageMillis <= MAX_PAGE_MILLIS);
+        assertTrue(heapPerBuild + " bytes per build", heapPerBuild <= MAX_HEAP_PER_BUILD);
+    }
+
+    /**
+     * Matrix job with many configurations: selecting a configuration build whose
+     * promotion comes from the parent build.
+     */
+    public void testManyConfigurations() throws Exception {
+        MatrixProject job = createMatrixProject();
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < CONFIGURATIONS; i++) values.add("v" + i);
+        job.setAxes(new AxisList(new Axis("x", values)));
+        MatrixBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=2");
+        job.scheduleBuild2(0, new UserCause()).get();
+
+        long micros = 0;
+        for (int i = 0; i < CONFIGURATIONS; i++)
+            micros += select(job.getItem("x=v" + i), 2, 1);
+        micros /= CONFIGURATIONS;
+        System.out.println("Scalability: " + CONFIGURATIONS + " configurations; selection "
+                           + micros + " us");
+        assertTrue("selection took " + micros + " us", micros <= MAX_SELECT_MICROS);
+    }
+
+    /**
+     * Maven reactor with many modules, built offline with goal "validate".
+     */
+    public void testManyModules() throws Exception {
+        configureDefaultMaven();
+        MavenModuleSet job = createMavenProject();
+        job.setGoals("-o validate");
+        job.setScm(new ExtractResourceSCM(writeReactor(MODULES).toURI().toURL()));
+        MavenModuleSetBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=2");
+        job.scheduleBuild2(0, new UserCause()).get();
+
+        long micros = 0;
+        for (int i = 0; i < MODULES; i++)
+            micros += select(job.getModule("test:module" + i), 2, 1);
+        micros /= MODULES;
+        System.out.println("Scalability: " + MODULES + " modules; selection " + micros + " us");
+        assertTrue("selection took " + micros + " us", micros <= MAX_SELECT_MICROS);
+    }
+
+    /* Mean time in microseconds to select the latest build at the given level */
+    private static long select(Job<?,?> job, int level, int times) {
+        PromotedBuildSelector selector = new PromotedBuildSelector(level);
+        long start = System.nanoTime();
+        for (int i = 0; i < times; i++)
+            assertNotNull(selector.getBuild(job, new EnvVars(), new BuildFilter()));
+        return (System.nanoTime() - start) / 1000 / times;
+    }
+
+    private static double evaluationsPerSelection(Job<?,?> job, int level) {
+        PromotionMetrics metrics = PromotionMetrics.get();
+        long evaluations = metrics.getEvaluations();
+        select(job, level, SELECTIONS);
+        return (double)(metrics.getEvaluations() - evaluations) / SELECTIONS;
+    }
+
+    /*
+     * Write build records directly.  Every tenth build is promoted, with level 3 only
+     * in the oldest tenth of the history.
+     */
+    private static void writeBuilds(Job<?,?> job, int count) throws IOException {
+        SimpleDateFormat idFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+        long time = System.currentTimeMillis() - count * 1000L;
+        for (int number = 1; number <= count; number++) {
+            int level = number % 10 != 0 ? 0 : number <= count / 10 ? 3 : 1 + number / 10 % 2;
+            File dir = new File(job.getBuildDir(), idFormat.format(new Date(time + number * 1000L)));
+            dir.mkdirs();
+            FileUtils.writeStringToFile(new File(dir, "build.xml"),
+                    "<?xml version='1.0' encoding='UTF-8'?>\n<build>\n  <actions>\n"
+                    + "    <hudson.plugins.promoted__builds__simple.PromoteAction>\n"
+                    + "      <levelValue>" + level + "</levelValue>\n"
+                    + "    </hudson.plugins.promoted__builds__simple.PromoteAction>\n"
+                    + "  </actions>\n  <number>" + number + "</number>\n"
+                    + "  <result>SUCCESS</result>\n  <duration>1</duration>\n"
+                    + "  <keepLog>false</keepLog>\n</build>\n", "UTF-8");
+        }
+        FileUtils.writeStringToFile(new File(job.getRootDir(), "nextBuildNumber"),
+                                    Integer.toString(count + 1));
+    }
+
+    /* Zip of a reactor project with the given number of pom-only modules */
+    private static File writeReactor(int modules) throws IOException {
+        File zip = File.createTempFile("reactor", ".zip");
+        zip.deleteOnExit();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            StringBuilder list = new StringBuilder();
+            for (int i = 0; i < modules; i++) {
+                list.append("<module>module").append(i).append("</module>");
+                addPom(out, "module" + i + "/pom.xml", "module" + i, "");
+            }
+            addPom(out, "pom.xml", "reactor", "<modules>" + list + "</modules>");
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private static void addPom(ZipOutputStream out, String path, String artifactId,
+                               String content) throws IOException {
+        out.putNextEntry(new ZipEntry(path));
+        out.write(("<project><modelVersion>4.0.0</modelVersion><groupId>test</groupId>"
+                   + "<artifactId>" + artifactId + "</artifactId><version>1</version>"
+                   + "<packaging>pom</packaging>" + content + "</project>").getBytes("UTF-8"));
+        out.closeEntry();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
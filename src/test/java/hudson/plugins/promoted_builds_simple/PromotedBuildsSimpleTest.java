@@ -25,6 +25,7 @@ package hudson.plugins.promoted_builds_simple;
 
 import com.gargoylesoftware.htmlunit.HttpMethod;
 import com.gargoylesoftware.htmlunit.WebRequestSettings;
+import com.gargoylesoftware.htmlunit.WebResponse;
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -41,16 +42,34 @@ import hudson.model.BuildListener;
 import hudson.model.Cause.UserCause;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.plugins.copyartifact.BuildFilter;
+import hudson.security.FullControlOnceLoggedInAuthorizationStrategy;
 import hudson.tasks.Builder;
 import hudson.tasks.ArtifactArchiver;
+import hudson.util.FormValidation;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.io.FileUtils;
 import org.jvnet.hudson.test.CaptureEnvironmentBuilder;
 import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.HudsonTestCase;
@@ -69,15 +88,67 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
         FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
         PromoteAction pa = build.getAction(PromoteAction.class);
         assertNotNull("plugin should add action on all builds", pa);
+        assertSame("unpromoted builds should share one action", PromoteAction.UNPROMOTED, pa);
         WebClient wc = new WebClient();
         wc.addRequestHeader("Referer", "/");
         wc.getPage(build, "promote/?level=3");
+        pa = build.getAction(PromoteAction.class);
         assertEquals(3, pa.getLevelValue());
+        assertEquals(1, build.getActions(PromoteAction.class).size());
+        String xml = FileUtils.readFileToString(new File(build.getRootDir(), "build.xml"));
+        assertTrue(xml.contains("<levelValue>3</levelValue>"));
+        assertFalse("level name should not be stored", xml.contains("GA release"));
         // check for badge image in build history:
         assertNotNull(wc.getPage(job).getElementById("side-panel").getFirstByXPath(
                 "**/img[@title='GA release']"));
     }
 
+    /**
+     * Load PromoteAction as stored by older versions, with level name and icon.
+     */
+    public void testLegacyRecord() throws Exception {
+        String element = "hudson.plugins.promoted__builds__simple.PromoteAction";
+        PromoteAction pa = (PromoteAction)Run.XSTREAM.fromXML("<" + element
+                + "><level>QA approved</level><icon>qa-green.gif</icon>"
+                + "<levelValue>1</levelValue></" + element + ">");
+        assertEquals("level should be found by name", 2, pa.getLevelValue());
+        assertEquals("QA approved", pa.getLevel());
+        assertFalse(Run.XSTREAM.toXML(pa).contains("qa-green.gif"));
+        pa = (PromoteAction)Run.XSTREAM.fromXML("<" + element
+                + "><level>Old level</level><icon>old.gif</icon>"
+                + "<levelValue>5</levelValue></" + element + ">");
+        assertEquals("Old level", pa.getLevel());
+        assertSame(PromoteAction.UNPROMOTED,
+                   Run.XSTREAM.fromXML("<" + element + "><levelValue>0</levelValue></" + element + ">"));
+    }
+
+    /**
+     * Build records stored by older versions are saved again with the level found by
+     * name, and the promotion index is corrected.
+     */
+    public void testLegacyRecordSaved() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=1");
+        File file = new File(build.getRootDir(), "build.xml");
+        FileUtils.writeStringToFile(file, FileUtils.readFileToString(file).replace(
+                "<levelValue>1</levelValue>",
+                "<level>QA approved</level><icon>qa-green.gif</icon><levelValue>1</levelValue>"));
+        hudson.reload();
+        job = (FreeStyleProject)hudson.getItem(job.getName());
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        assertEquals(2, job.getBuildByNumber(1).getAction(PromoteAction.class).getLevelValue());
+        // Loading the index of the reloaded job saves the build
+        assertEquals(1, PromotionIndex.of(job).getLatest(2));
+        plugin.getWriter().flush();
+        String xml = FileUtils.readFileToString(file);
+        assertTrue(xml, xml.contains("<levelValue>2</levelValue>"));
+        assertFalse(xml, xml.contains("QA approved"));
+    }
+
     /**
      * Verify PromotionLevelParameter works via HTML form, http POST and CLI.
      */
@@ -121,6 +192,8 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
         CLI cli = new CLI(getURL());
         try {
             assertEquals(0, cli.execute(
+                    new String[] { "build", job.getFullName(), "-p", "PROMO=GA release" }));
+            assertFalse("unknown level should be rejected", 0 == cli.execute(
                     new String[] { "build", job.getFullName(), "-p", "PROMO=5" }));
         } finally {
             cli.close();
@@ -128,7 +201,12 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
         q = hudson.getQueue().getItem(job);
         if (q != null) q.getFuture().get();
         while (job.getLastBuild().isBuilding()) Thread.sleep(100);
-        assertEquals("5", ceb.getEnvVars().get("PROMO"));
+        assertEquals("3", ceb.getEnvVars().get("PROMO"));
+        assertEquals("3", ceb.getEnvVars().get("COPY_PROMOTION_LEVEL"));
+        ParameterValue value =
+                job.getLastBuild().getAction(ParametersAction.class).getParameter("PROMO");
+        assertTrue(value instanceof PromotionLevelParameterValue);
+        assertEquals(3, ((PromotionLevelParameterValue)value).getLevel());
     }
 
     /**
@@ -136,23 +214,31 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
      */
     public void testAutoKeep() throws Exception {
         // Add a level that does not auto-keep (default levels do)
-        ((PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple")).getLevels().add(
-                new PromotionLevel("foo", "foo.gif", false));
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        List<PromotionLevel> levels = new ArrayList<PromotionLevel>(plugin.getLevels());
+        levels.add(new PromotionLevel("foo", "foo.gif", false));
+        long version = plugin.getLevelTable().getVersion();
+        plugin.setLevels(levels);
+        assertTrue(plugin.getLevelTable().getVersion() > version);
+        assertEquals(4, plugin.getLevelTable().getValue("foo"));
         FreeStyleProject job = createFreeStyleProject();
         FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
-        PromoteAction pa = build.getAction(PromoteAction.class);
         WebClient wc = new WebClient();
         wc.addRequestHeader("Referer", "/");
         wc.getPage(build, "promote/?level=4");
-        assertEquals("foo", pa.getLevel());
+        assertEquals("foo", build.getAction(PromoteAction.class).getLevel());
         assertFalse("should not get marked \"keep forever\"", build.isKeepLog());
         wc.getPage(build, "promote/?level=2");
-        assertEquals(2, pa.getLevelValue());
+        assertEquals(2, build.getAction(PromoteAction.class).getLevelValue());
         assertTrue("should get marked \"keep forever\"", build.isKeepLog());
         wc.getPage(build, "promote/?level=0");
-        assertNull(pa.getLevel());
-        // Up for debate whether demotion should auto-not-keep:
-        assertTrue("demotion should not change \"keep\" setting", build.isKeepLog());
+        assertSame(PromoteAction.UNPROMOTED, build.getAction(PromoteAction.class));
+        assertFalse("demotion should release \"keep\" set by promotion", build.isKeepLog());
+        build.keepLog(true);
+        wc.getPage(build, "promote/?level=2");
+        wc.getPage(build, "promote/?level=0");
+        assertTrue("demotion should not change \"keep\" set by user", build.isKeepLog());
     }
 
     /**
@@ -174,6 +260,613 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
         assertEquals(1, pbs.getBuild(job, env, filter).getNumber());
         pbs = new PromotedBuildSelector(3); // Too high.. no match
         assertNull(pbs.getBuild(job, env, filter));
+        pbs = new PromotedBuildSelector(0); // Level from environment, by value or name
+        env.put("COPY_PROMOTION_LEVEL", "QA approved");
+        assertEquals(1, pbs.getBuild(job, env, filter).getNumber());
+        env.put("COPY_PROMOTION_LEVEL", "2");
+        assertEquals(1, pbs.getBuild(job, env, filter).getNumber());
+        env.put("COPY_PROMOTION_LEVEL", "no such level");
+        assertNull(pbs.getBuild(job, env, filter));
+
+        // Repeated selection checks only the remembered build, until promotions change
+        pbs = new PromotedBuildSelector(2);
+        pbs.getBuild(job, env, filter);
+        long evaluations = PromotionMetrics.get().getEvaluations();
+        assertEquals(1, pbs.getBuild(job, env, filter).getNumber());
+        assertEquals(1, PromotionMetrics.get().getEvaluations() - evaluations);
+        // Changes in other jobs keep the remembered build
+        FreeStyleProject other = createFreeStyleProject();
+        wc.getPage(other.scheduleBuild2(0, new UserCause()).get(), "promote/?level=2");
+        evaluations = PromotionMetrics.get().getEvaluations();
+        assertEquals(1, pbs.getBuild(job, env, filter).getNumber());
+        assertEquals(1, PromotionMetrics.get().getEvaluations() - evaluations);
+        wc.getPage(job.getBuildByNumber(2), "promote/?level=3");
+        assertEquals(2, pbs.getBuild(job, env, filter).getNumber());
+
+        // Check selections are counted on the management page and metrics endpoint
+        WebClient admin = new WebClient();
+        admin.goTo("promotedBuilds/");
+        JSONObject metrics = JSONObject.fromObject(admin.goTo(
+                "promotedBuilds/metrics", "application/json").getWebResponse()
+                .getContentAsString());
+        assertTrue(metrics.getLong("selections") >= 3);
+        assertTrue(metrics.getJSONObject("selectionTime").getLong("count") >= 3);
+    }
+
+    /**
+     * Verify the per-job promotion index is kept in sync with promotions, build deletion
+     * and job rename.
+     */
+    public void testPromotionIndex() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=3");
+        wc.getPage(build2, "promote/?level=1");
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).exists());
+        PromotionIndex index = PromotionIndex.of(job);
+        assertEquals(Arrays.asList(2, 1), index.getBuilds(1));
+        assertSame("should reuse result", index.getBuilds(1), index.getBuilds(1));
+        assertEquals(1, index.getLatest(2));
+        wc.getPage(build1, "promote/?level=0");
+        assertEquals(-1, index.getLatest(2));
+        assertEquals(Arrays.asList(2), index.getBuilds(1));
+        build2.delete();
+        assertEquals(-1, index.getLatest(1));
+        assertNull(new PromotedBuildSelector(1).getBuild(job, new EnvVars(), new BuildFilter()));
+        // Index is kept in the new job directory after rename
+        job.renameTo("renamed");
+        wc.getPage(build1, "promote/?level=2");
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).exists());
+        assertEquals(1, new PromotedBuildSelector(2).getBuild(job, new EnvVars(), new BuildFilter())
+                .getNumber());
+    }
+
+    /**
+     * With write-behind, promotions are saved by the background writer, as the system
+     * user so keep-forever can be set on a secured controller.
+     */
+    public void testWriteBehind() throws Exception {
+        hudson.setSecurityRealm(createDummySecurityRealm());
+        hudson.setAuthorizationStrategy(new FullControlOnceLoggedInAuthorizationStrategy());
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        plugin.setWriteBehind(true);
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient().login("alice");
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=2");
+        assertEquals(2, build.getAction(PromoteAction.class).getLevelValue());
+        assertEquals("index is updated when promoted", 1, PromotionIndex.of(job).getLatest(2));
+        PromotionIndex.forget(job);
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).delete());
+        assertEquals("rebuilt index has unsaved change", 1, PromotionIndex.of(job).getLatest(2));
+        plugin.setWriteBehind(false);   // Saves queued changes now
+        assertEquals(0, plugin.getWriter().getQueueDepth());
+        assertTrue(plugin.getWriter().getWrittenCount() >= 1);
+        String xml = FileUtils.readFileToString(new File(build.getRootDir(), "build.xml"));
+        assertTrue(xml, xml.contains("<levelValue>2</levelValue>"));
+        assertTrue("QA approved level keeps builds", build.isKeepLog());
+        PromotionIndex.forget(job);
+        assertEquals("index file is saved", 1, PromotionIndex.of(job).getLatest(2));
+    }
+
+    /**
+     * With promoteChildren, promoting a matrix build promotes its configuration builds.
+     */
+    public void testPromoteChildren() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        plugin.setPromoteChildren(true);
+        MatrixProject job = createMatrixProject();
+        job.setAxes(new AxisList(new Axis("foo", "bar", "baz")));
+        MatrixBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        assertBuildStatusSuccess(build);
+        Run<?,?> child = job.getItem("foo=bar").getBuildByNumber(1);
+        assertSame(build, ChildPromotion.getParentBuild(child));
+        assertNull(ChildPromotion.getParentBuild(build));
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=2");
+        for (Run<?,?> run : build.getRuns()) {
+            PromoteAction pa = run.getAction(PromoteAction.class);
+            assertEquals(2, pa.getLevelValue());
+            assertNotNull("promoted at configuration level", pa.getLevel());
+            assertEquals(1, PromotionIndex.of(run.getParent()).getLatest(2));
+        }
+        plugin.getWriter().flush();   // Configuration builds are saved in the background
+        String xml = FileUtils.readFileToString(new File(child.getRootDir(), "build.xml"));
+        assertTrue(xml, xml.contains("<levelValue>2</levelValue>"));
+        wc.getPage(build, "promote/?level=0");
+        assertSame(PromoteAction.UNPROMOTED, child.getAction(PromoteAction.class));
+        assertEquals(-1, PromotionIndex.of(child.getParent()).getLatest(1));
+    }
+
+    /**
+     * Configuration builds inherit the promotion of their parent build.
+     */
+    public void testParentPromotion() throws Exception {
+        MatrixProject job = createMatrixProject();
+        job.setAxes(new AxisList(new Axis("foo", "bar")));
+        MatrixBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        job.scheduleBuild2(0, new UserCause()).get();
+        job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=1");
+        PromotedBuildSelector pbs = new PromotedBuildSelector(1);
+        EnvVars env = new EnvVars();
+        assertTrue(pbs.isSelectable(job.getItem("foo=bar").getBuildByNumber(1), env));
+        assertFalse(pbs.isSelectable(job.getItem("foo=bar").getBuildByNumber(2), env));
+        long evaluations = PromotionMetrics.get().getEvaluations();
+        assertEquals(1, pbs.getBuild(job.getItem("foo=bar"), env, new BuildFilter()).getNumber());
+        assertEquals("only builds in promoted parent builds are checked",
+                     1, PromotionMetrics.get().getEvaluations() - evaluations);
+    }
+
+    /**
+     * Reorder and remove levels, then update stored level values.
+     */
+    public void testRenumberLevels() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=3");
+        wc.getPage(build2, "promote/?level=1");
+        assertEquals(Arrays.asList(1), PromotionIndex.of(job).getBuilds(3));
+        assertNull(plugin.getMigration());
+        job.addProperty(new ParametersDefinitionProperty(
+                new PromotionLevelParameter("PROMO", 3, "foo")));
+        PromotedBuildSelector selector = new PromotedBuildSelector(3);
+        // Drop "QA build" and move "GA release" first
+        List<PromotionLevel> levels = plugin.getLevels();
+        plugin.setLevels(Arrays.asList(levels.get(2), levels.get(1)));
+        assertEquals(1, selector.getLevel());
+        assertEquals("GA release", build1.getAction(PromoteAction.class).getLevel());
+        assertEquals(1, build1.getAction(PromoteAction.class).getLevelValue());
+        assertEquals(0, build2.getAction(PromoteAction.class).getLevelValue());
+        assertEquals(Arrays.asList(1), PromotionIndex.of(job).getBuilds(1));
+        LevelMigration migration = plugin.getMigration();
+        assertNotNull(migration);
+        migration.start(1, 1000);
+        for (int i = 0; i < 100 && plugin.getMigration() != null; i++) Thread.sleep(100);
+        assertNull("migration should finish", plugin.getMigration());
+        assertSame(PromoteAction.UNPROMOTED, build2.getAction(PromoteAction.class));
+        String xml = FileUtils.readFileToString(new File(build1.getRootDir(), "build.xml"));
+        assertTrue(xml, xml.contains("<levelValue>1</levelValue>"));
+        xml = FileUtils.readFileToString(new File(job.getRootDir(), "config.xml"));
+        assertTrue(xml, xml.contains("<defaultLevel>1</defaultLevel>"));
+        // History was rewritten too, so the renumbering is no longer kept
+        assertEquals(1, plugin.getLevelTable().getRenumberingBase());
+        assertEquals(1, plugin.getLevelTable().getEpoch());
+        assertEquals(1, PromotionHistory.of(job).getEntries(1).get(0).getNewValue());
+        assertEquals(1, selector.getLevel());
+    }
+
+    /**
+     * Load promotion indexes of all jobs in the background.
+     */
+    public void testWarmup() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        job.scheduleBuild2(0, new UserCause()).get();
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        PromotionWarmup warmup = plugin.getWarmup();
+        assertFalse(warmup.isStarted());
+        warmup.start();
+        for (int i = 0; i < 100 && warmup.isRunning(); i++) Thread.sleep(100);
+        assertFalse(warmup.isRunning());
+        assertEquals(warmup.getJobsTotal(), warmup.getJobsDone());
+        long elapsed = warmup.getElapsedMillis();
+        warmup.cancel();
+        Thread.sleep(50);
+        assertEquals("elapsed time stops when finished", elapsed, warmup.getElapsedMillis());
+
+        // Threads loading the same index concurrently get one instance
+        final FreeStyleProject job2 = createFreeStyleProject();
+        job2.scheduleBuild2(0, new UserCause()).get();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<PromotionIndex>> indexes = new ArrayList<Future<PromotionIndex>>();
+        for (int i = 0; i < 4; i++) {
+            indexes.add(pool.submit(new Callable<PromotionIndex>() {
+                public PromotionIndex call() {
+                    return PromotionIndex.of(job2);
+                }
+            }));
+        }
+        for (Future<PromotionIndex> index : indexes)
+            assertSame(indexes.get(0).get(), index.get());
+        pool.shutdown();
+        new WebClient().goTo("promotedBuilds/");
+    }
+
+    /**
+     * Promotion changes are recorded in the history log.
+     */
+    public void testPromotionHistory() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=1");
+        wc.getPage(build1, "promote/?level=3");
+        wc.getPage(build2, "promote/?level=2");
+        PromotionHistory history = PromotionHistory.of(job);
+        List<PromotionHistory.Entry> entries = history.getEntries(1);
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(1).getOldValue());
+        assertEquals(3, entries.get(1).getNewValue());
+        assertEquals(3, history.getFirstPromotion(1, 3).getNewValue());
+        assertNull(history.getFirstPromotion(2, 3));
+        assertEquals(2, history.getPromotions(2, 0).size());
+        assertEquals(0, history.getPromotions(2, System.currentTimeMillis() + 1000).size());
+        JSONArray json = JSONArray.fromObject(wc.goTo(
+                "plugin/promoted-builds-simple/history?job=" + job.getName() + "&minLevel=3",
+                "application/json").getWebResponse().getContentAsString());
+        assertEquals(1, json.size());
+        assertEquals(1, json.getJSONObject(0).getInt("build"));
+        // Change not yet saved when the job is renamed is recorded in the new directory
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        plugin.setWriteBehind(true);
+        wc.getPage(build2, "promote/?level=3");
+        job.renameTo("renamed");
+        plugin.getWriter().flush();
+        assertSame(history, PromotionHistory.of(job));
+        assertEquals(2, history.getEntries(2).size());
+        assertTrue(new File(job.getRootDir(), PromotionHistory.FILE_NAME).exists());
+    }
+
+    /**
+     * Levels for the promotion menu are served with cache headers.
+     */
+    public void testLevelsResource() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        String etag = plugin.getLevelTable().getETag();
+        WebResponse rsp = new WebClient().goTo(PromoteAction.getLevelsUrl().substring(1),
+                "application/json").getWebResponse();
+        assertEquals('"' + etag + '"', rsp.getResponseHeaderValue("ETag"));
+        assertTrue(rsp.getResponseHeaderValue("Cache-Control").contains("max-age"));
+        JSONArray levels = JSONObject.fromObject(rsp.getContentAsString()).getJSONArray("levels");
+        assertEquals(3, levels.size());
+        assertEquals("QA approved", levels.getJSONObject(1).getString("name"));
+        // Changing levels changes the URL
+        List<PromotionLevel> list = new ArrayList<PromotionLevel>(plugin.getLevels());
+        list.add(new PromotionLevel("foo", "foo.gif", false));
+        plugin.setLevels(list);
+        assertFalse(etag.equals(plugin.getLevelTable().getETag()));
+        assertFalse(new WebClient().goTo("plugin/promoted-builds-simple/levels?v=" + etag,
+                "application/json").getWebResponse().getResponseHeaderValue("Cache-Control")
+                .contains("max-age"));
+    }
+
+    /**
+     * Builds are promoted by rules when they complete.
+     */
+    public void testAutoPromotion() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        List<PromotionLevel> levels = new ArrayList<PromotionLevel>(plugin.getLevels());
+        levels.set(0, new PromotionLevel("QA build", "qa.gif", false,
+                                         new AutoPromotion("SUCCESS", "")));
+        // No test results, so never matches
+        levels.set(1, new PromotionLevel("QA approved", "qa-green.gif", false,
+                                         new AutoPromotion("SUCCESS", "0")));
+        plugin.setLevels(levels);
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        for (int i = 0; i < 50 && build.getAction(PromoteAction.class).getLevelValue() == 0; i++)
+            Thread.sleep(100);
+        assertEquals(1, build.getAction(PromoteAction.class).getLevelValue());
+        assertEquals(1, PromotionIndex.of(job).getLatest(1));
+        assertTrue(PromotionMetrics.get().getAutoPromotions() >= 1);
+        // Not a number: treated as no test check
+        assertNull(new AutoPromotion("SUCCESS", "x").getMaxFailures());
+        assertEquals(Integer.valueOf(2), new AutoPromotion("SUCCESS", " 2 ").getMaxFailures());
+    }
+
+    /**
+     * Only the latest builds at a level are kept forever when the level limits it.
+     */
+    public void testRetention() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        List<PromotionLevel> levels = new ArrayList<PromotionLevel>(plugin.getLevels());
+        levels.set(0, new PromotionLevel("QA build", "qa.gif", true, "1", null));
+        plugin.setLevels(levels);
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build3 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build4 = job.scheduleBuild2(0, new UserCause()).get();
+        build2.keepLog(true);  // Kept by user
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=1");
+        assertTrue(build1.getAction(PromoteAction.class).isAutoKept());
+        wc.getPage(build2, "promote/?level=1");
+        assertFalse(build2.getAction(PromoteAction.class).isAutoKept());
+        wc.getPage(build3, "promote/?level=3");   // Kept by GA level with no limit
+        wc.getPage(build4, "promote/?level=1");
+        for (int i = 0; i < 50 && build1.isKeepLog(); i++) Thread.sleep(100);
+        assertFalse("older build should be released", build1.isKeepLog());
+        assertFalse(build1.getAction(PromoteAction.class).isAutoKept());
+        assertTrue("kept by user", build2.isKeepLog());
+        assertTrue("kept by higher level", build3.isKeepLog());
+        assertTrue("latest at level", build4.isKeepLog());
+        // Not a number: all builds kept, as when empty
+        assertNull(new PromotionLevel("QA build", "qa.gif", true, "x", null).getKeepLatest());
+        assertEquals(FormValidation.Kind.ERROR, plugin.doCheckKeepLatest("x").kind);
+        assertEquals(FormValidation.Kind.OK, plugin.doCheckKeepLatest("").kind);
+    }
+
+    /**
+     * Keep-forever is set or released when a promoted build is saved, from its
+     * promotion at that time, also when the save was queued for the background writer.
+     */
+    public void testKeepOnSave() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        List<PromotionLevel> levels = new ArrayList<PromotionLevel>(plugin.getLevels());
+        levels.set(0, new PromotionLevel("QA build", "qa.gif", true, "1", null));
+        plugin.setLevels(levels);
+        plugin.setWriteBehind(true);
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=1");
+        wc.getPage(build2, "promote/?level=1");
+        // Released by retention before the queued save of the promotion
+        Retention.release(job, 10);
+        plugin.getWriter().flush();
+        assertFalse(build1.getAction(PromoteAction.class).isAutoKept());
+        assertFalse("released build should not be kept", build1.isKeepLog());
+        assertTrue(build2.isKeepLog());
+        // Clearing the promotion releases keep-forever set by it
+        wc.getPage(build2, "promote/?level=0");
+        plugin.getWriter().flush();
+        assertSame(PromoteAction.UNPROMOTED, build2.getAction(PromoteAction.class));
+        assertFalse(build2.isKeepLog());
+    }
+
+    /**
+     * Uploaded icons are stored by content and served with cache headers.
+     */
+    public void testIconStore() throws Exception {
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        byte[] gif = "GIF89a-not-really-an-image".getBytes("US-ASCII");
+        String path = plugin.getIconStore().store(new ByteArrayInputStream(gif));
+        assertTrue(path, path.startsWith("/plugin/promoted-builds-simple/icons/"));
+        assertTrue(path, path.endsWith(".gif"));
+        assertEquals("same image stored once", path,
+                     plugin.getIconStore().store(new ByteArrayInputStream(gif)));
+        try {
+            plugin.getIconStore().store(new ByteArrayInputStream("<html/>".getBytes("US-ASCII")));
+            fail("should reject unknown image type");
+        } catch (IllegalArgumentException expected) { }
+        try {
+            plugin.getIconStore().store(new ByteArrayInputStream(new byte[IconStore.MAX_SIZE + 1]));
+            fail("should reject large file");
+        } catch (IllegalArgumentException expected) { }
+        WebResponse rsp = new WebClient().goTo(path.substring(1), "image/gif").getWebResponse();
+        assertTrue(rsp.getResponseHeaderValue("Cache-Control").contains("immutable"));
+        assertEquals(gif.length, rsp.getContentAsBytes().length);
+    }
+
+    /**
+     * List view column shows the newest build at each level, also after a job rename.
+     */
+    public void testPromotionColumn() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=3");
+        wc.getPage(build2, "promote/?level=1");
+        PromotionColumn column = new PromotionColumn();
+        List<PromotionColumn.Latest> latest = column.getLatest(job);
+        assertEquals(2, latest.size());
+        assertEquals("GA release", latest.get(0).getLevelName());
+        assertEquals(1, latest.get(0).getNumber());
+        assertEquals(2, latest.get(1).getNumber());
+        job.renameTo("renamed");
+        wc.getPage(build2, "promote/?level=2");
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).exists());
+        assertEquals(2, column.getLatest(job).get(1).getNumber());
+        assertEquals("QA approved", column.getLatest(job).get(1).getLevelName());
+        // Index not loaded yet: shown once loaded in the background
+        PromotionIndex.forget(job);
+        latest = column.getLatest(job);
+        for (int i = 0; i < 50 && latest == null; i++) {
+            Thread.sleep(100);
+            latest = column.getLatest(job);
+        }
+        assertEquals(2, latest.size());
+    }
+
+    /**
+     * Compare-and-set promotion: only one of several concurrent requests expecting
+     * the same current level succeeds.
+     */
+    public void testPromoteExpect() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        final FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        wc.setPrintContentOnFailingStatusCode(false);
+        assertEquals(409, wc.getPage(build, "promote/?level=2&expect=1")
+                .getWebResponse().getStatusCode());
+        assertEquals(0, build.getAction(PromoteAction.class).getLevelValue());
+        assertEquals(400, wc.getPage(build, "promote/?level=2&expect=x")
+                .getWebResponse().getStatusCode());
+        assertEquals(400, wc.getPage(build, "promote/?level=x")
+                .getWebResponse().getStatusCode());
+        assertEquals(400, wc.getPage(build, "promote/?level=99")
+                .getWebResponse().getStatusCode());
+        assertEquals(400, wc.getPage(build, "promote/?level=-1")
+                .getWebResponse().getStatusCode());
+        assertEquals(0, build.getAction(PromoteAction.class).getLevelValue());
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 1; i <= 3; i++) {
+            final int level = i;
+            results.add(pool.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    WebClient wc = new WebClient();
+                    wc.addRequestHeader("Referer", "/");
+                    wc.setThrowExceptionOnFailingStatusCode(false);
+                    wc.setPrintContentOnFailingStatusCode(false);
+                    return wc.getPage(build, "promote/?level=" + level + "&expect=0")
+                             .getWebResponse().getStatusCode();
+                }
+            }));
+        }
+        int conflicts = 0;
+        for (Future<Integer> result : results)
+            if (result.get() == 409) conflicts++;
+        pool.shutdown();
+        assertEquals("only one should succeed", 2, conflicts);
+        assertTrue(build.getAction(PromoteAction.class).getLevelValue() > 0);
+    }
+
+    /**
+     * Read promotion from build.xml without loading the build, and rebuild a missing
+     * promotion index that way.
+     */
+    public void testBuildXmlPeek() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build1, "promote/?level=2");
+        BuildXmlPeek peek = BuildXmlPeek.read(new File(build1.getRootDir(), "build.xml"),
+                                              PromoteAction.getLevelTable());
+        assertEquals(1, peek.getNumber());
+        assertEquals(2, peek.getLevelValue());
+        peek = BuildXmlPeek.read(new File(build2.getRootDir(), "build.xml"),
+                                 PromoteAction.getLevelTable());
+        assertEquals(2, peek.getNumber());
+        assertEquals(0, peek.getLevelValue());
+        assertNull(BuildXmlPeek.read(new File(job.getRootDir(), "missing.xml"), null));
+
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).delete());
+        PromotionIndex.forget(job);
+        assertEquals(Arrays.asList(1), PromotionIndex.of(job).getBuilds(1));
+        assertTrue(new File(job.getRootDir(), PromotionIndex.FILE_NAME).exists());
+    }
+
+    /**
+     * Promote several builds in one request.
+     */
+    public void testBulkPromote() throws Exception {
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build1 = job.scheduleBuild2(0, new UserCause()).get();
+        FreeStyleBuild build2 = job.scheduleBuild2(0, new UserCause()).get();
+        WebRequestSettings post = new WebRequestSettings(
+                new URL(getURL(), "plugin/promoted-builds-simple/bulkPromote"), HttpMethod.POST);
+        post.setRequestBody("[{job:'" + job.getFullName() + "',build:1,level:3},"
+                + "{job:'" + job.getFullName() + "',build:2,level:1},"
+                + "{job:'" + job.getFullName() + "',build:3,level:1}]");
+        JSONArray results = JSONArray.fromObject(
+                new WebClient().getPage(post).getWebResponse().getContentAsString());
+        assertEquals("ok", results.getJSONObject(0).getString("status"));
+        assertEquals("ok", results.getJSONObject(1).getString("status"));
+        assertEquals("error", results.getJSONObject(2).getString("status"));
+        assertEquals(3, build1.getAction(PromoteAction.class).getLevelValue());
+        assertEquals(1, build2.getAction(PromoteAction.class).getLevelValue());
+        assertTrue(build1.isKeepLog());
+        assertEquals(1, PromotionIndex.of(job).getLatest(3));
+    }
+
+    /**
+     * List promoted builds across jobs.
+     */
+    public void testPromotions() throws Exception {
+        FreeStyleProject job1 = createFreeStyleProject("alpha");
+        FreeStyleProject job2 = createFreeStyleProject("beta");
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(job1.scheduleBuild2(0, new UserCause()).get(), "promote/?level=1");
+        wc.getPage(job1.scheduleBuild2(0, new UserCause()).get(), "promote/?level=3");
+        wc.getPage(job2.scheduleBuild2(0, new UserCause()).get(), "promote/?level=3");
+        String[] lines = wc.goTo("plugin/promoted-builds-simple/promotions?minLevel=2&job=al",
+                                 "application/x-ndjson").getWebResponse()
+                           .getContentAsString().trim().split("\n");
+        assertEquals(1, lines.length);
+        JSONObject line = JSONObject.fromObject(lines[0]);
+        assertEquals("alpha", line.getString("job"));
+        assertEquals(2, line.getInt("build"));
+        assertEquals("GA release", line.getString("level"));
+        // Index not loaded yet: listed as pending while it loads in the background
+        PromotionIndex.forget(job2);
+        line = JSONObject.fromObject(wc.goTo("plugin/promoted-builds-simple/promotions?job=beta",
+                "application/x-ndjson").getWebResponse().getContentAsString().trim());
+        assertTrue(line.getBoolean("pending"));
+        for (int i = 0; i < 50 && line.optBoolean("pending"); i++) {
+            Thread.sleep(100);
+            line = JSONObject.fromObject(wc.goTo("plugin/promoted-builds-simple/promotions?job=beta",
+                    "application/x-ndjson").getWebResponse().getContentAsString().trim());
+        }
+        assertEquals(1, line.getInt("build"));
+    }
+
+    private static class RecordingListener extends PromotionListener {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        @Override public void onPromoted(Run<?,?> run, int oldLevel, int newLevel) {
+            events.add("promoted " + oldLevel + "->" + newLevel);
+        }
+        @Override public void onDemoted(Run<?,?> run, int oldLevel, int newLevel) {
+            events.add("demoted " + oldLevel + "->" + newLevel);
+        }
+        @Override public void onCleared(Run<?,?> run, int oldLevel) {
+            events.add("cleared " + oldLevel);
+        }
+        String next() throws InterruptedException {
+            return events.poll(10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Verify PromotionListener is notified of promotion changes.
+     */
+    public void testPromotionListener() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        hudson.getExtensionList(PromotionListener.class).add(listener);
+        FreeStyleProject job = createFreeStyleProject();
+        FreeStyleBuild build = job.scheduleBuild2(0, new UserCause()).get();
+        WebClient wc = new WebClient();
+        wc.addRequestHeader("Referer", "/");
+        wc.getPage(build, "promote/?level=3");
+        assertEquals("promoted 0->3", listener.next());
+        wc.getPage(build, "promote/?level=1");
+        assertEquals("demoted 3->1", listener.next());
+        wc.getPage(build, "promote/?level=0");
+        assertEquals("cleared 1", listener.next());
+        // With write-behind, listeners hear of the change once the build is saved
+        PromotedBuildsSimplePlugin plugin =
+                (PromotedBuildsSimplePlugin)hudson.getPlugin("promoted-builds-simple");
+        plugin.setWriteBehind(true);
+        wc.getPage(build, "promote/?level=2");
+        boolean noEvents = listener.events.isEmpty();
+        if (plugin.getWriter().getQueueDepth() > 0) assertTrue("not saved yet", noEvents);
+        plugin.setWriteBehind(false);   // Saves queued changes now
+        assertEquals("promoted 0->2", listener.next());
     }
 
     /**
@@ -244,5 +937,10 @@ public class PromotedBuildsSimpleTest extends HudsonTestCase {
         // Now promote the particular configuration, only to level 1.. overrides parent promotion.
         wc.getPage(job, "foo=bar/1/promote/?level=1");
         assertNull(pbs.getBuild(job.getItem("foo=bar"), env, filter));
+        assertNull("remembered that none is found", pbs.getBuild(job.getItem("foo=bar"), env, filter));
+        // Promoting a parent build changes the selection from its configurations
+        wc.getPage(job.getBuildByNumber(2), "promote/?level=2");
+        assertEquals(2, pbs.getBuild(job.getItem("foo=bar"), env, filter).getNumber());
+        assertEquals(2, pbs.getBuild(job.getItem("foo=baz"), env, filter).getNumber());
     }
 }